@@ -1,5 +1,20 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+import java.util.function.IntUnaryOperator;
+import java.util.function.Supplier;
+import java.util.zip.GZIPOutputStream;
 
 class Position {
     int x;
@@ -49,19 +64,12 @@ class Boomer {
     Position position = new Position(0, 0);
     int bombsAvailable;
     int explosionRange;
+    boolean alive = true; // present in the last input
 
     @Override
     public String toString() {
         return "Boomer {" + position + "," + bombsAvailable + "," + explosionRange + "}";
     }
-
-    Bomb createBomb(Position position) {
-        Bomb b = new Bomb();
-        b.position = position;
-        b.timer = Bomb.COUNTDOWN;
-        b.explosionRange = explosionRange;
-        return b;
-    }
 }
 
 class Bomb {
@@ -71,14 +79,71 @@ class Bomb {
 
     static final int ENTITY_TYPE = 1;
     static final int COUNTDOWN = 8;
+}
 
-    Position position = new Position(0, 0);
-    int timer;
-    int explosionRange;
+/**
+ * Bombs of a turn as parallel arrays, one slot per cell at most, so a turn fills it in place without allocating.
+ */
+class BombStore {
+    final int[] xs;
+    final int[] ys;
+    final int[] cells;
+    final int[] timers;
+    final int[] ranges;
+    final int[] owners;
+    private final int[] ownerCounts = new int[GameState.MAX_PLAYERS];
+    private final int[] order;
+    int count;
+
+    BombStore(int capacity) {
+        xs = new int[capacity];
+        ys = new int[capacity];
+        cells = new int[capacity];
+        timers = new int[capacity];
+        ranges = new int[capacity];
+        owners = new int[capacity];
+        order = new int[capacity];
+    }
 
-    @Override
-    public String toString() {
-        return "Bomb {" + position + "," + timer + "," + explosionRange + "}";
+    void clear() {
+        count = 0;
+        Arrays.fill(ownerCounts, 0);
+    }
+
+    void add(int x, int y, int cell, int timer, int range, int owner) {
+        xs[count] = x;
+        ys[count] = y;
+        cells[count] = cell;
+        timers[count] = timer;
+        ranges[count] = range;
+        owners[count] = owner;
+        ++ownerCounts[owner];
+        ++count;
+    }
+
+    void addAll(BombStore other) {
+        for (int i = 0; i < other.count; ++i) {
+            add(other.xs[i], other.ys[i], other.cells[i], other.timers[i], other.ranges[i], other.owners[i]);
+        }
+    }
+
+    int countOf(int owner) {
+        return ownerCounts[owner];
+    }
+
+    /**
+     * @return indices of the bombs by timer, equal timers in insertion order; valid until the next change
+     */
+    int[] sortedByTimer() {
+        for (int i = 0; i < count; ++i) {
+            int slot = i;
+            while (slot > 0 && timers[order[slot - 1]] > timers[i]) {
+                order[slot] = order[slot - 1];
+                --slot;
+            }
+            order[slot] = i;
+        }
+        return order;
     }
 }
 
@@ -95,9 +160,6 @@ class Item {
             this.code = code;
         }
     }
-
-    Position position = new Position(0, 0);
-    Type type;
 }
 
 class Cell {
@@ -111,6 +173,8 @@ class Cell {
         Wall('X'),
         Bomb('*');
 
+        static final Type[] VALUES = values();
+
         char symbol;
 
         Type(char symbol) {
@@ -126,6 +190,7 @@ class Cell {
     static EnumSet<Type> DESTROYABLE_OBJECTS = EnumSet.of(Type.Box, Type.BoxWithExtraRange, Type.BoxWithExtraBomb, Type.ExtraBomb, Type.ExtraRange);
 
     Position position;
+    int index; // y * width + x, the same layout as in the maps
 
     @Override
     public String toString() {
@@ -155,17 +220,28 @@ class Grid {
     int width;
     Cell cells[][];
     List<Cell> asList;
+    GridTopology topology;
 
-    void clear() {
+    void init() {
         cells = new Cell[width][height];
         asList = new ArrayList<>(width * height);
+        for (int rowIndex = 0; rowIndex < height; ++rowIndex) {
+            for (int columnIndex = 0; columnIndex < width; ++columnIndex) {
+                final Cell cell = new Cell();
+                cell.position = new Position(columnIndex, rowIndex);
+                cell.index = rowIndex * width + columnIndex;
+                cells[columnIndex][rowIndex] = cell;
+                asList.add(cell);
+            }
+        }
+        topology = new GridTopology(width, height);
     }
 
     String showTypes(TypeMap typeMap) {
         final StringBuilder sb = new StringBuilder(height * width);
         for (int rowIndex = 0; rowIndex < height; ++rowIndex) {
             for (int columnIndex = 0; columnIndex < width; ++columnIndex) {
-                sb.append(typeMap.values[columnIndex][rowIndex].value.symbol);
+                sb.append(typeMap.at(columnIndex, rowIndex).symbol);
             }
             sb.append("\n");
         }
@@ -177,7 +253,7 @@ class Grid {
         sb.append("Utility").append("\n");
         for (int rowIndex = 0; rowIndex < height; ++rowIndex) {
             for (int columnIndex = 0; columnIndex < width; ++columnIndex) {
-                sb.append(utilityMap.values[columnIndex][rowIndex].value);
+                sb.append(utilityMap.at(columnIndex, rowIndex));
             }
             sb.append("\n");
         }
@@ -189,7 +265,7 @@ class Grid {
         sb.append("Distance").append("\n");
         for (int rowIndex = 0; rowIndex < height; ++rowIndex) {
             for (int columnIndex = 0; columnIndex < width; ++columnIndex) {
-                final int distance = pathMap.values[columnIndex][rowIndex].distance;
+                final int distance = pathMap.distanceAt(columnIndex, rowIndex);
                 sb.append(
                         (distance == Integer.MAX_VALUE)
                                 ? "."
@@ -205,9 +281,9 @@ class Grid {
         sb.append("Explosions").append("\n");
         for (int rowIndex = 0; rowIndex < height; ++rowIndex) {
             for (int columnIndex = 0; columnIndex < width; ++columnIndex) {
-                final int timeToExplosion = explosionMap.values[columnIndex][rowIndex].value;
+                final int timeToExplosion = explosionMap.at(columnIndex, rowIndex);
                 if (timeToExplosion == Bomb.NO_EXPLOSION) {
-                    sb.append(Cell.NONPASSABLE_SUBTYPES.contains(typeMap.values[columnIndex][rowIndex].value) ? "X" : ".");
+                    sb.append(typeMap.nonPassable.get(typeMap.index(columnIndex, rowIndex)) ? "X" : ".");
                 } else {
                     sb.append(timeToExplosion);
                 }
@@ -217,13 +293,25 @@ class Grid {
         return sb.toString();
     }
 
+    String showThreat(int[] threat) {
+        final StringBuilder sb = new StringBuilder(height * width);
+        sb.append("Threat").append("\n");
+        for (int rowIndex = 0; rowIndex < height; ++rowIndex) {
+            for (int columnIndex = 0; columnIndex < width; ++columnIndex) {
+                final int value = threat[rowIndex * width + columnIndex];
+                sb.append(value == 0 ? "." : Math.min(9, value * 10 / ThreatLayer.CERTAIN));
+            }
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
     String showSafetyMap(IntegerMap safetyMap) {
         final StringBuilder sb = new StringBuilder(height * width);
         sb.append("Safety").append("\n");
         for (int rowIndex = 0; rowIndex < height; ++rowIndex) {
             for (int columnIndex = 0; columnIndex < width; ++columnIndex) {
-                final IntegerParameter p = safetyMap.values[columnIndex][rowIndex];
-                sb.append(p.value);
+                sb.append(safetyMap.at(columnIndex, rowIndex));
             }
             sb.append("\n");
         }
@@ -231,348 +319,2313 @@ class Grid {
     }
 }
 
-class IntegerParameter {
-    int value;
-}
-
-class BooleanParameter {
-    boolean value;
-}
+/**
+ * Fixed-size set of cells, bit i stands for the cell with index i (see Cell.index).
+ * The standard 13x11 board fits in three longs.
+ */
+class BitBoard {
+    final int size;
+    final long[] words;
+
+    BitBoard(int size) {
+        this.size = size;
+        words = new long[(size + 63) >>> 6];
+    }
 
-class PathParameter {
-    int distance = Integer.MAX_VALUE;
-    Cell previousCell;
-}
+    boolean get(int index) {
+        return (words[index >>> 6] & (1L << index)) != 0;
+    }
 
-class TypeParameter {
-    Cell.Type value = Cell.Type.Floor;
-}
+    void set(int index) {
+        words[index >>> 6] |= 1L << index;
+    }
 
-class IntegerMap {
-    final IntegerParameter[][] values;
-    final List<IntegerParameter> asList;
+    void clear(int index) {
+        words[index >>> 6] &= ~(1L << index);
+    }
 
-    private IntegerMap(int width, int height, int defaultValue) {
-        values = new IntegerParameter[width][height];
-        asList = new ArrayList<>(width * height);
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                final IntegerParameter p = new IntegerParameter();
-                p.value = defaultValue;
-                values[x][y] = p;
-                asList.add(p);
-            }
+    void set(int index, boolean value) {
+        if (value) {
+            set(index);
+        } else {
+            clear(index);
         }
     }
 
-    IntegerParameter at(Position pos) {
-        return values[pos.x][pos.y];
+    void clear() {
+        Arrays.fill(words, 0L);
     }
 
-    static IntegerMap createUtilityMap(int width, int height) {
-        return new IntegerMap(width, height, 0);
+    void setAll() {
+        Arrays.fill(words, -1L);
+        trim();
     }
 
-    static IntegerMap createExplosionMap(int width, int height) {
-        return new IntegerMap(width, height, 0);
+    void copyFrom(BitBoard other) {
+        System.arraycopy(other.words, 0, words, 0, words.length);
     }
 
-    static IntegerMap createSafetyMap(int width, int height) {
-        return new IntegerMap(width, height, Bomb.ALREADY_EXPLODED);
+    void and(BitBoard other) {
+        for (int i = 0; i < words.length; ++i) {
+            words[i] &= other.words[i];
+        }
     }
-}
-
-class BooleanMap {
-    final BooleanParameter[][] values;
-    final List<BooleanParameter> asList;
 
-    private BooleanMap(int width, int height, boolean defaultValue) {
-        values = new BooleanParameter[width][height];
-        asList = new ArrayList<>(width * height);
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                final BooleanParameter p = new BooleanParameter();
-                p.value = defaultValue;
-                values[x][y] = p;
-                asList.add(p);
-            }
+    void or(BitBoard other) {
+        for (int i = 0; i < words.length; ++i) {
+            words[i] |= other.words[i];
         }
     }
 
-    BooleanParameter at(Position pos) {
-        return values[pos.x][pos.y];
+    void andNot(BitBoard other) {
+        for (int i = 0; i < words.length; ++i) {
+            words[i] &= ~other.words[i];
+        }
     }
 
-    static BooleanMap createTrueMap(int width, int height) {
-        return new BooleanMap(width, height, true);
+    void xor(BitBoard other) {
+        for (int i = 0; i < words.length; ++i) {
+            words[i] ^= other.words[i];
+        }
     }
 
-    static BooleanMap createFalseMap(int width, int height) {
-        return new BooleanMap(width, height, false);
+    boolean intersects(BitBoard other) {
+        for (int i = 0; i < words.length; ++i) {
+            if ((words[i] & other.words[i]) != 0) {
+                return true;
+            }
+        }
+        return false;
     }
-}
 
-class PathMap {
-    final PathParameter[][] values;
-    final List<PathParameter> asList;
+    boolean isSubsetOf(BitBoard other) {
+        for (int i = 0; i < words.length; ++i) {
+            if ((words[i] & ~other.words[i]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-    private PathMap(int width, int height) {
-        values = new PathParameter[width][height];
-        asList = new ArrayList<>(width * height);
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                final PathParameter p = new PathParameter();
-                values[x][y] = p;
-                asList.add(p);
+    boolean isEmpty() {
+        for (final long word : words) {
+            if (word != 0) {
+                return false;
             }
         }
+        return true;
     }
 
-    PathParameter at(Position pos) {
-        return values[pos.x][pos.y];
+    int cardinality() {
+        int count = 0;
+        for (final long word : words) {
+            count += Long.bitCount(word);
+        }
+        return count;
     }
 
-    static PathMap createPathMap(int width, int height) {
-        return new PathMap(width, height);
+    /**
+     * @return index of the first set bit at or after fromIndex, -1 if there is none
+     */
+    int nextSetBit(int fromIndex) {
+        if (fromIndex >= size) {
+            return -1;
+        }
+        int wordIndex = fromIndex >>> 6;
+        long word = words[wordIndex] & (-1L << fromIndex);
+        while (word == 0) {
+            if (++wordIndex == words.length) {
+                return -1;
+            }
+            word = words[wordIndex];
+        }
+        return (wordIndex << 6) + Long.numberOfTrailingZeros(word);
     }
-}
 
-class TypeMap {
-    final TypeParameter[][] values;
-    final List<TypeParameter> asList;
+    /**
+     * this = source moved by shift cells towards higher indices, may be called with source == this
+     */
+    void shiftUp(BitBoard source, int shift) {
+        final int wordShift = shift >>> 6;
+        final int bitShift = shift & 63;
+        for (int i = words.length - 1; i >= 0; --i) {
+            final int from = i - wordShift;
+            long word = 0;
+            if (from >= 0) {
+                word = source.words[from] << bitShift;
+                if (bitShift != 0 && from > 0) {
+                    word |= source.words[from - 1] >>> (64 - bitShift);
+                }
+            }
+            words[i] = word;
+        }
+        trim();
+    }
 
-    private TypeMap(int width, int height) {
-        values = new TypeParameter[width][height];
-        asList = new ArrayList<>(width * height);
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                final TypeParameter p = new TypeParameter();
-                values[x][y] = p;
-                asList.add(p);
+    /**
+     * this = source moved by shift cells towards lower indices, may be called with source == this
+     */
+    void shiftDown(BitBoard source, int shift) {
+        final int wordShift = shift >>> 6;
+        final int bitShift = shift & 63;
+        for (int i = 0; i < words.length; ++i) {
+            final int from = i + wordShift;
+            long word = 0;
+            if (from < words.length) {
+                word = source.words[from] >>> bitShift;
+                if (bitShift != 0 && from + 1 < words.length) {
+                    word |= source.words[from + 1] << (64 - bitShift);
+                }
             }
+            words[i] = word;
         }
     }
 
-    private TypeMap(int width, int height, TypeMap other) {
-        values = new TypeParameter[width][height];
-        asList = new ArrayList<>(width * height);
-        for (int x = 0; x < width; ++x) {
-            for (int y = 0; y < height; ++y) {
-                final TypeParameter p = new TypeParameter();
-                p.value = other.values[x][y].value;
-                values[x][y] = p;
-                asList.add(p);
+    private void trim() {
+        final int tail = size & 63;
+        if (tail != 0) {
+            words[words.length - 1] &= (1L << tail) - 1;
+        }
+    }
+}
+
+/**
+ * Static neighbourhood of every cell, built once per game.
+ * Neighbours are listed in the order left, right, up, down.
+ * Rays go right, left, down, up and list the cells from the nearest one up to the edge of the grid,
+ * an explosion of range r covers the first r - 1 of them (minus the ones behind a stopper).
+ */
+class GridTopology {
+    static final int DIRECTION_COUNT = 4;
+
+    final int width;
+    final int height;
+    private final int[] neighbours;
+    private final int[] neighbourCounts;
+    private final int[][] rays;
+    private final BitBoard notFirstColumn;
+    private final BitBoard notLastColumn;
+    final Zobrist zobrist;
+
+    GridTopology(int width, int height) {
+        this.width = width;
+        this.height = height;
+        final int size = width * height;
+        neighbours = new int[size * DIRECTION_COUNT];
+        neighbourCounts = new int[size];
+        rays = new int[size * DIRECTION_COUNT][];
+        final int[] dx = {1, -1, 0, 0};
+        final int[] dy = {0, 0, 1, -1};
+        for (int y = 0; y < height; ++y) {
+            for (int x = 0; x < width; ++x) {
+                final int cell = y * width + x;
+                int count = 0;
+                if (x - 1 >= 0) {
+                    neighbours[cell * DIRECTION_COUNT + count++] = cell - 1;
+                }
+                if (x + 1 < width) {
+                    neighbours[cell * DIRECTION_COUNT + count++] = cell + 1;
+                }
+                if (y - 1 >= 0) {
+                    neighbours[cell * DIRECTION_COUNT + count++] = cell - width;
+                }
+                if (y + 1 < height) {
+                    neighbours[cell * DIRECTION_COUNT + count++] = cell + width;
+                }
+                neighbourCounts[cell] = count;
+                for (int direction = 0; direction < DIRECTION_COUNT; ++direction) {
+                    int length = 0;
+                    int rayX = x + dx[direction];
+                    int rayY = y + dy[direction];
+                    while (rayX >= 0 && rayY >= 0 && rayX < width && rayY < height) {
+                        ++length;
+                        rayX += dx[direction];
+                        rayY += dy[direction];
+                    }
+                    final int[] ray = new int[length];
+                    for (int step = 0; step < length; ++step) {
+                        ray[step] = (y + dy[direction] * (step + 1)) * width + x + dx[direction] * (step + 1);
+                    }
+                    rays[cell * DIRECTION_COUNT + direction] = ray;
+                }
             }
         }
+        notFirstColumn = new BitBoard(size);
+        notLastColumn = new BitBoard(size);
+        notFirstColumn.setAll();
+        notLastColumn.setAll();
+        for (int y = 0; y < height; ++y) {
+            notFirstColumn.clear(y * width);
+            notLastColumn.clear(y * width + width - 1);
+        }
+        zobrist = new Zobrist(size);
     }
 
-    TypeParameter at(Position pos) {
-        return values[pos.x][pos.y];
+    int neighbourCount(int cell) {
+        return neighbourCounts[cell];
     }
 
-    TypeMap getDeepCopy(int width, int height) {
-        return new TypeMap(width, height, this);
+    int neighbour(int cell, int i) {
+        return neighbours[cell * DIRECTION_COUNT + i];
     }
 
-    ;
+    int[] ray(int cell, int direction) {
+        return rays[cell * DIRECTION_COUNT + direction];
+    }
 
-    static TypeMap createTypeMap(int width, int height) {
-        return new TypeMap(width, height);
+    static int rayLength(int[] ray, int explosionRange) {
+        return Math.max(0, Math.min(explosionRange - 1, ray.length));
     }
-}
 
-class World {
-    final Grid grid = new Grid();
-    final Boomer player = new Boomer();
-    final Map<Integer, Boomer> enemies = new HashMap<>(3);
-    final List<Bomb> playerBombs = new ArrayList<>();
-    final List<Bomb> enemyBombs = new ArrayList<>();
-    final List<Bomb> allBombs = new ArrayList<>();
-    int boxCount;
-    int bonusCount;
-    int bombCount;
-    boolean changed;
-    boolean playersBombCountChanged = false;
+    /**
+     * out = the cells of source and their neighbours.
+     *
+     * @param scratch board, neither source nor out
+     */
+    void spread(BitBoard source, BitBoard out, BitBoard scratch) {
+        out.copyFrom(source);
+        scratch.shiftUp(source, 1);
+        scratch.and(notFirstColumn);
+        out.or(scratch);
+        scratch.shiftDown(source, 1);
+        scratch.and(notLastColumn);
+        out.or(scratch);
+        scratch.shiftUp(source, width);
+        out.or(scratch);
+        scratch.shiftDown(source, width);
+        out.or(scratch);
+    }
+
+    /**
+     * Adds to out the cells hit by bombs of the given range placed on every cell of generator.
+     * All rays of one direction advance together by shift-and-mask, a ray covers the first stopper and ends there.
+     *
+     * @param ray scratch board
+     */
+    void blastFill(BitBoard generator, int explosionRange, BitBoard stoppers, BitBoard out, BitBoard ray) {
+        out.or(generator);
+        for (int direction = 0; direction < DIRECTION_COUNT; ++direction) {
+            ray.copyFrom(generator);
+            for (int step = 1; step < explosionRange; ++step) {
+                switch (direction) {
+                    case 0:
+                        ray.shiftUp(ray, 1);
+                        ray.and(notFirstColumn);
+                        break;
+                    case 1:
+                        ray.shiftDown(ray, 1);
+                        ray.and(notLastColumn);
+                        break;
+                    case 2:
+                        ray.shiftUp(ray, width);
+                        break;
+                    default:
+                        ray.shiftDown(ray, width);
+                        break;
+                }
+                if (ray.isEmpty()) {
+                    break;
+                }
+                out.or(ray);
+                ray.andNot(stoppers);
+            }
+        }
+    }
 }
 
-abstract class Action implements Comparable<Action> {
+/**
+ * Base for the flat per-cell maps. Every write stamps the cell with the current generation,
+ * cells with an older stamp read as the map's default value, so a reset is O(1).
+ */
+abstract class StampedMap {
+    final int width;
+    final int height;
+    final int size;
+    int[] stamps;
+    int generation = 1;
+
+    StampedMap(int width, int height) {
+        this.width = width;
+        this.height = height;
+        size = width * height;
+        stamps = new int[size];
+    }
 
-    static final int LOW_PRIORITY = 3;
-    static final int NORMAL_PRIORITY = 2;
-    static final int HIGH_PRIORITY = 1;
+    int index(int x, int y) {
+        return y * width + x;
+    }
 
-    int priority = NORMAL_PRIORITY;
-    int order;
+    int index(Position pos) {
+        return pos.y * width + pos.x;
+    }
 
-    @Override
-    public int compareTo(Action o) {
-        final int priorityDelta = priority - o.priority;
-        if (priorityDelta != 0) {
-            return priorityDelta;
+    boolean isSet(int index) {
+        return stamps[index] == generation;
+    }
+
+    void nextGeneration() {
+        if (++generation == 0) {
+            Arrays.fill(stamps, 0);
+            generation = 1;
         }
-        return (order - o.order);
     }
+}
 
-    abstract void execute();
+class IntegerMap extends StampedMap {
+    private final int[] values;
+    private int defaultValue;
 
-    abstract boolean checkPreconditions();
+    private IntegerMap(int width, int height, int defaultValue) {
+        super(width, height);
+        values = new int[size];
+        this.defaultValue = defaultValue;
+    }
 
-    abstract boolean checkPostconditions();
-}
+    int at(int index) {
+        return stamps[index] == generation ? values[index] : defaultValue;
+    }
 
-class Move extends Action {
-    private Boomer player;
-    private Position targetPosition;
+    int at(int x, int y) {
+        return at(index(x, y));
+    }
 
-    Move(Position targetPosition, Boomer player) {
-        this.player = player;
-        this.targetPosition = targetPosition;
+    int at(Position pos) {
+        return at(index(pos));
     }
 
-    @Override
-    void execute() {
-        System.out.println("MOVE " + targetPosition.x + " " + targetPosition.y);
+    void set(int index, int value) {
+        values[index] = value;
+        stamps[index] = generation;
     }
 
-    @Override
-    boolean checkPreconditions() {
-        return !player.position.equals(targetPosition);
+    void set(int x, int y, int value) {
+        set(index(x, y), value);
     }
 
-    @Override
-    boolean checkPostconditions() {
-        return player.position.equals(targetPosition);
+    void set(Position pos, int value) {
+        set(index(pos), value);
     }
 
-    @Override
-    public String toString() {
-        return "Move " + targetPosition;
+    void fill(int value) {
+        defaultValue = value;
+        nextGeneration();
     }
-}
 
-class SkipTurn extends Action {
+    static IntegerMap createUtilityMap(int width, int height) {
+        return new IntegerMap(width, height, 0);
+    }
 
-    private Boomer player;
-    private boolean done = false;
-    private String comment = "";
+    static IntegerMap createExplosionMap(int width, int height) {
+        return new IntegerMap(width, height, 0);
+    }
 
-    SkipTurn(Boomer player) {
-        this.player = player;
+    static IntegerMap createSafetyMap(int width, int height) {
+        return new IntegerMap(width, height, Bomb.ALREADY_EXPLODED);
     }
 
-    SkipTurn(Boomer player, String comment) {
-        this.player = player;
-        this.comment = comment;
+    static IntegerMap createRetreatMap(int width, int height) {
+        return new IntegerMap(width, height, Player.RETREAT_UNKNOWN);
     }
+}
 
-    @Override
-    void execute() {
-        System.out.println("MOVE " + player.position.x + " " + player.position.y + " " + comment);
-        done = true;
+class BooleanMap extends StampedMap {
+    private final boolean[] values;
+    private boolean defaultValue;
+
+    private BooleanMap(int width, int height, boolean defaultValue) {
+        super(width, height);
+        values = new boolean[size];
+        this.defaultValue = defaultValue;
     }
 
-    @Override
-    boolean checkPreconditions() {
-        return true;
+    boolean at(int index) {
+        return stamps[index] == generation ? values[index] : defaultValue;
     }
 
-    @Override
-    boolean checkPostconditions() {
-        return done;
+    boolean at(int x, int y) {
+        return at(index(x, y));
     }
 
-    @Override
-    public String toString() {
-        return "SkipTurn at" + player.position + " (" + comment + ")";
+    boolean at(Position pos) {
+        return at(index(pos));
     }
-}
 
-class PlaceBomb extends Action {
-    private boolean bombPlaced = false;
-    private Position targetPosition;
-    private Boomer player;
+    void set(int index, boolean value) {
+        values[index] = value;
+        stamps[index] = generation;
+    }
 
-    PlaceBomb(Position targetPosition, Boomer player) {
-        this.player = player;
-        this.targetPosition = targetPosition;
+    void set(int x, int y, boolean value) {
+        set(index(x, y), value);
     }
 
-    @Override
-    void execute() {
-        if (player.position.equals(targetPosition)) {
-            System.out.println("BOMB " + targetPosition.x + " " + targetPosition.y);
-            bombPlaced = true;
-        } else {
-            System.out.println("MOVE " + targetPosition.x + " " + targetPosition.y);
-        }
+    void set(Position pos, boolean value) {
+        set(index(pos), value);
     }
 
-    @Override
-    boolean checkPreconditions() {
-        return !bombPlaced;
+    void fill(boolean value) {
+        defaultValue = value;
+        nextGeneration();
     }
 
-    @Override
-    boolean checkPostconditions() {
-        return bombPlaced;
+    static BooleanMap createTrueMap(int width, int height) {
+        return new BooleanMap(width, height, true);
     }
 
-    @Override
-    public String toString() {
-        return "PlaceBomb " + targetPosition;
+    static BooleanMap createFalseMap(int width, int height) {
+        return new BooleanMap(width, height, false);
     }
 }
 
-class PlaceBombAndGoTo extends Action {
+class PathMap extends StampedMap {
+    static final int NO_PREVIOUS_CELL = -1;
 
-    private Position target;
-    private Boomer player;
-    private boolean done = false;
+    private final int[] distances;
+    private final int[] previousCells; // cell indices, see Cell.index
 
-    PlaceBombAndGoTo(Position target, Boomer player) {
-        this.target = target;
-        this.player = player;
+    private PathMap(int width, int height) {
+        super(width, height);
+        distances = new int[size];
+        previousCells = new int[size];
     }
 
-    @Override
-    void execute() {
-        if (player.bombsAvailable > 0) {
-            System.out.println("BOMB " + target.x + " " + target.y);
-            done = true;
-        } else {
-            System.out.println("MOVE " + player.position.x + " " + player.position.y + " Wait for bomb");
-        }
+    int distanceAt(int index) {
+        return stamps[index] == generation ? distances[index] : Integer.MAX_VALUE;
     }
 
-    @Override
-    boolean checkPreconditions() {
-        return true;
+    int distanceAt(int x, int y) {
+        return distanceAt(index(x, y));
     }
 
-    @Override
-    boolean checkPostconditions() {
-        return done;
+    int distanceAt(Position pos) {
+        return distanceAt(index(pos));
     }
 
-    @Override
-    public String toString() {
-        return "PlaceBombAndGoTo " + target;
+    int previousCellAt(int index) {
+        return stamps[index] == generation ? previousCells[index] : NO_PREVIOUS_CELL;
     }
-}
+
+    int previousCellAt(Position pos) {
+        return previousCellAt(index(pos));
+    }
+
+    void set(int index, int distance, int previousCellIndex) {
+        distances[index] = distance;
+        previousCells[index] = previousCellIndex;
+        stamps[index] = generation;
+    }
+
+    void setDistance(Position pos, int distance) {
+        final int index = index(pos);
+        set(index, distance, previousCellAt(index));
+    }
+
+    void setPreviousCell(Position pos, int previousCellIndex) {
+        final int index = index(pos);
+        set(index, distanceAt(index), previousCellIndex);
+    }
+
+    void reset() {
+        nextGeneration();
+    }
+
+    static PathMap createPathMap(int width, int height) {
+        return new PathMap(width, height);
+    }
+}
+
+class TypeMap extends StampedMap {
+    private final byte[] values; // Cell.Type ordinals
+    private Cell.Type defaultValue = Cell.Type.Floor;
+
+    // the same content split by type classes of Cell, kept in sync by set() and fill()
+    final BitBoard passable;
+    final BitBoard nonPassable;
+    final BitBoard explosionStoppers;
+    final BitBoard destroyable;
+    final BitBoard boxes;
+    final BitBoard bonuses;
+    final BitBoard bombs;
+
+    private TypeMap(int width, int height) {
+        super(width, height);
+        values = new byte[size];
+        passable = new BitBoard(size);
+        nonPassable = new BitBoard(size);
+        explosionStoppers = new BitBoard(size);
+        destroyable = new BitBoard(size);
+        boxes = new BitBoard(size);
+        bonuses = new BitBoard(size);
+        bombs = new BitBoard(size);
+        fill(Cell.Type.Floor);
+    }
+
+    Cell.Type at(int index) {
+        return stamps[index] == generation ? Cell.Type.VALUES[values[index]] : defaultValue;
+    }
+
+    Cell.Type at(int x, int y) {
+        return at(index(x, y));
+    }
+
+    Cell.Type at(Position pos) {
+        return at(index(pos));
+    }
+
+    void set(int index, Cell.Type type) {
+        values[index] = (byte) type.ordinal();
+        stamps[index] = generation;
+        passable.set(index, Cell.PASSABLE_SUBTYPES.contains(type));
+        nonPassable.set(index, Cell.NONPASSABLE_SUBTYPES.contains(type));
+        explosionStoppers.set(index, Cell.EXPLOSION_STOPPERS.contains(type));
+        destroyable.set(index, Cell.DESTROYABLE_OBJECTS.contains(type));
+        boxes.set(index, Cell.BOX_SUBTYPES.contains(type));
+        bonuses.set(index, Cell.BONUS_SUBTYPES.contains(type));
+        bombs.set(index, type == Cell.Type.Bomb);
+    }
+
+    void set(int x, int y, Cell.Type type) {
+        set(index(x, y), type);
+    }
+
+    void set(Position pos, Cell.Type type) {
+        set(index(pos), type);
+    }
+
+    void fill(Cell.Type type) {
+        defaultValue = type;
+        nextGeneration();
+        fill(passable, Cell.PASSABLE_SUBTYPES.contains(type));
+        fill(nonPassable, Cell.NONPASSABLE_SUBTYPES.contains(type));
+        fill(explosionStoppers, Cell.EXPLOSION_STOPPERS.contains(type));
+        fill(destroyable, Cell.DESTROYABLE_OBJECTS.contains(type));
+        fill(boxes, Cell.BOX_SUBTYPES.contains(type));
+        fill(bonuses, Cell.BONUS_SUBTYPES.contains(type));
+        fill(bombs, type == Cell.Type.Bomb);
+    }
+
+    private static void fill(BitBoard board, boolean value) {
+        if (value) {
+            board.setAll();
+        } else {
+            board.clear();
+        }
+    }
+
+    void copyFrom(TypeMap other) {
+        System.arraycopy(other.values, 0, values, 0, size);
+        System.arraycopy(other.stamps, 0, stamps, 0, size);
+        generation = other.generation;
+        defaultValue = other.defaultValue;
+        passable.copyFrom(other.passable);
+        nonPassable.copyFrom(other.nonPassable);
+        explosionStoppers.copyFrom(other.explosionStoppers);
+        destroyable.copyFrom(other.destroyable);
+        boxes.copyFrom(other.boxes);
+        bonuses.copyFrom(other.bonuses);
+        bombs.copyFrom(other.bombs);
+    }
+
+    static TypeMap createTypeMap(int width, int height) {
+        return new TypeMap(width, height);
+    }
+}
+
+/**
+ * Binary min-heap of cell indices ordered by the distances of a PathMap.
+ * It sifts exactly like java.util.PriorityQueue does, so equally distant cells
+ * are polled in the same order, but it also keeps the heap slot of every queued
+ * cell: contains() is O(1) and remove() is O(log n) instead of a linear scan.
+ */
+class CellQueue {
+    private static final int NOT_QUEUED = -1;
+
+    private final int[] heap;
+    private final int[] slots;
+    private int size;
+    private PathMap pathMap;
+
+    CellQueue(int capacity) {
+        heap = new int[capacity];
+        slots = new int[capacity];
+        Arrays.fill(slots, NOT_QUEUED);
+    }
+
+    void reset(PathMap pathMap) {
+        for (int i = 0; i < size; ++i) {
+            slots[heap[i]] = NOT_QUEUED;
+        }
+        size = 0;
+        this.pathMap = pathMap;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    boolean contains(int cellIndex) {
+        return slots[cellIndex] != NOT_QUEUED;
+    }
+
+    void add(int cellIndex) {
+        siftUp(size++, cellIndex);
+    }
+
+    int poll() {
+        final int result = heap[0];
+        slots[result] = NOT_QUEUED;
+        final int last = --size;
+        if (last != 0) {
+            siftDown(0, heap[last]);
+        }
+        return result;
+    }
+
+    void remove(int cellIndex) {
+        final int slot = slots[cellIndex];
+        slots[cellIndex] = NOT_QUEUED;
+        final int last = --size;
+        if (last != slot) {
+            final int moved = heap[last];
+            siftDown(slot, moved);
+            if (heap[slot] == moved) {
+                siftUp(slot, moved);
+            }
+        }
+    }
+
+    private int compare(int cell1, int cell2) {
+        return pathMap.distanceAt(cell1) - pathMap.distanceAt(cell2);
+    }
+
+    private void siftUp(int slot, int cellIndex) {
+        while (slot > 0) {
+            final int parent = (slot - 1) >>> 1;
+            final int parentCell = heap[parent];
+            if (compare(cellIndex, parentCell) >= 0) {
+                break;
+            }
+            place(slot, parentCell);
+            slot = parent;
+        }
+        place(slot, cellIndex);
+    }
+
+    private void siftDown(int slot, int cellIndex) {
+        final int half = size >>> 1;
+        while (slot < half) {
+            int child = (slot << 1) + 1;
+            int childCell = heap[child];
+            final int right = child + 1;
+            if (right < size && compare(childCell, heap[right]) > 0) {
+                child = right;
+                childCell = heap[child];
+            }
+            if (compare(cellIndex, childCell) <= 0) {
+                break;
+            }
+            place(slot, childCell);
+            slot = child;
+        }
+        place(slot, cellIndex);
+    }
+
+    private void place(int slot, int cellIndex) {
+        heap[slot] = cellIndex;
+        slots[cellIndex] = slot;
+    }
+}
+
+/**
+ * Best target cells of a turn, in the order the scan of doubling ranges visits them: by scan level
+ * (the first range that reaches the cell), then higher utility, then shorter distance, then cell index.
+ * One pass over the cells keeps the CAPACITY best ones in a bounded heap.
+ */
+class TargetCandidates {
+    static final int CAPACITY = 16;
+    private static final int MAX_UTILITY = 0xFFFF;
+    private static final long CELL_MASK = 0xFFFFF;
+
+    private final long[] heap = new long[CAPACITY]; // max-heap, the worst kept candidate on top
+    private int heapSize;
+    final int[] cells = new int[CAPACITY];
+    final int[] levels = new int[CAPACITY]; // scan level of each cell
+    int count;
+
+    /**
+     * Walks the cells by distance, scan range after scan range, and asks for the utility of a cell only when it
+     * is examined: once the candidates are full no cell of a farther scan range can enter, the walk stops there.
+     *
+     * @param cellsByDistance reached cells in non-decreasing distance, see MapArena.visitOrder
+     */
+    void extract(
+            final int initialScanRange,
+            final int scanDepth,
+            final boolean ignoreZeroUtility,
+            final IntUnaryOperator utilities,
+            final PathMap pathMap,
+            final int[] cellsByDistance,
+            final int cellCount
+    ) {
+        heapSize = 0;
+        final int maxScanRange = initialScanRange << (scanDepth - 1);
+        int level = 0;
+        int scanRange = initialScanRange;
+        for (int i = 0; i < cellCount; ++i) {
+            final int cell = cellsByDistance[i];
+            final int distance = pathMap.distanceAt(cell);
+            if (distance > maxScanRange) {
+                break;
+            }
+            if (distance > scanRange) {
+                if (heapSize == CAPACITY) {
+                    break;
+                }
+                while (distance > scanRange) {
+                    scanRange <<= 1;
+                    ++level;
+                }
+            }
+            final int utility = utilities.applyAsInt(cell);
+            if (ignoreZeroUtility && utility == 0) {
+                continue;
+            }
+            offer(((long) level << 56)
+                    | ((long) (MAX_UTILITY - Math.min(utility, MAX_UTILITY)) << 40)
+                    | ((long) distance << 20)
+                    | cell);
+        }
+        Arrays.sort(heap, 0, heapSize);
+        count = heapSize;
+        for (int i = 0; i < count; ++i) {
+            cells[i] = (int) (heap[i] & CELL_MASK);
+            levels[i] = (int) (heap[i] >>> 56);
+        }
+    }
+
+    private void offer(long key) {
+        if (heapSize < CAPACITY) {
+            int child = heapSize++;
+            while (child > 0) {
+                final int parent = (child - 1) >>> 1;
+                if (heap[parent] >= key) {
+                    break;
+                }
+                heap[child] = heap[parent];
+                child = parent;
+            }
+            heap[child] = key;
+        } else if (key < heap[0]) {
+            int parent = 0;
+            while (true) {
+                int child = 2 * parent + 1;
+                if (child >= heapSize) {
+                    break;
+                }
+                if (child + 1 < heapSize && heap[child + 1] > heap[child]) {
+                    ++child;
+                }
+                if (heap[child] <= key) {
+                    break;
+                }
+                heap[parent] = heap[child];
+                parent = child;
+            }
+            heap[parent] = key;
+        }
+    }
+}
+
+/**
+ * Space-time view of the coming explosions. blasts[t] holds the cells that burn when the player has made
+ * t more moves (explosion time minus one, as in the safety map), up to HORIZON. Each bomb adds its own blast
+ * at its own explosion time, chain reactions included, so a cell hit by two unchained bombs burns at both
+ * times. expand() follows the player over (cell, t) with waiting allowed; boxes and bombs block until they
+ * blow up and are open from the next turn. A retreat simulation builds only up to the last blast of its bombs.
+ * Every step is a handful of bit board operations, cheap enough for each retreat candidate.
+ */
+class DangerGrid {
+    static final int HORIZON = Bomb.COUNTDOWN;
+
+    private final GridTopology topology;
+    final BitBoard[] blasts = new BitBoard[HORIZON + 1];
+    private final BitBoard[] passable = new BitBoard[HORIZON + 1];
+    // cells where the player is alive after t moves
+    final BitBoard[] reachable = new BitBoard[HORIZON + 1];
+    // cells of reachable from which HORIZON is still reached alive, filled by backtrack()
+    final BitBoard[] survivable = new BitBoard[HORIZON + 1];
+    // cells blasted at t or later, dangerFrom[horizon + 1] is empty
+    private final BitBoard[] dangerFrom = new BitBoard[HORIZON + 2];
+    private final BitBoard seen;
+    private final BitBoard scratch;
+    private final BitBoard source;
+    private final BitBoard frontier;
+    private final BitBoard nextFrontier;
+    private int horizon = HORIZON; // of the last build()
+    private int start;
+    private boolean startBlocked; // standing on a bomb: it may be left, not entered again
+
+    DangerGrid(GridTopology topology) {
+        this.topology = topology;
+        final int size = topology.width * topology.height;
+        for (int t = 0; t <= HORIZON; ++t) {
+            blasts[t] = new BitBoard(size);
+            passable[t] = new BitBoard(size);
+            reachable[t] = new BitBoard(size);
+            survivable[t] = new BitBoard(size);
+            dangerFrom[t] = new BitBoard(size);
+        }
+        dangerFrom[HORIZON + 1] = new BitBoard(size);
+        seen = new BitBoard(size);
+        scratch = new BitBoard(size);
+        source = new BitBoard(size);
+        frontier = new BitBoard(size);
+        nextFrontier = new BitBoard(size);
+    }
+
+    /**
+     * @param explosionMap explosion map of the bombs; the value on a bomb's own cell is its explosion time
+     *                     with chain reactions, NO_EXPLOSION once it is over
+     */
+    void build(final BombStore bombs, final IntegerMap explosionMap, final TypeMap typeMap) {
+        build(bombs, explosionMap, typeMap, HORIZON);
+    }
+
+    /**
+     * Builds the boards up to the given horizon only, later blasts are left out.
+     * expand() and backtrack() need the full build().
+     */
+    void build(final BombStore bombs, final IntegerMap explosionMap, final TypeMap typeMap, final int horizon) {
+        this.horizon = horizon;
+        for (int t = 0; t <= horizon; ++t) {
+            blasts[t].clear();
+        }
+        for (int bomb = 0; bomb < bombs.count; ++bomb) {
+            final int bombCell = bombs.cells[bomb];
+            final int explosionTime = explosionMap.at(bombCell);
+            if (explosionTime != Bomb.NO_EXPLOSION && explosionTime - 1 <= horizon) {
+                source.clear();
+                source.set(bombCell);
+                topology.blastFill(source, bombs.ranges[bomb], typeMap.explosionStoppers, blasts[explosionTime - 1], scratch);
+            }
+        }
+        passable[0].copyFrom(typeMap.passable);
+        for (int t = 1; t <= horizon; ++t) {
+            passable[t].copyFrom(blasts[t - 1]);
+            scratch.copyFrom(typeMap.boxes);
+            scratch.or(typeMap.bombs);
+            passable[t].and(scratch);
+            passable[t].or(passable[t - 1]);
+        }
+        dangerFrom[horizon + 1].clear();
+        for (int t = horizon; t >= 0; --t) {
+            dangerFrom[t].copyFrom(dangerFrom[t + 1]);
+            dangerFrom[t].or(blasts[t]);
+        }
+    }
+
+    /**
+     * Fills reachable from the player standing on startCell now.
+     *
+     * @return true if the player can live through the HORIZON
+     */
+    boolean expand(final int startCell) {
+        start = startCell;
+        startBlocked = !passable[0].get(startCell);
+        reachable[0].clear();
+        if (!blasts[0].get(startCell)) {
+            reachable[0].set(startCell);
+        }
+        for (int t = 1; t <= HORIZON; ++t) {
+            final BitBoard next = reachable[t];
+            topology.spread(reachable[t - 1], next, scratch);
+            next.and(passable[t]);
+            if (reachable[t - 1].get(startCell)) {
+                next.set(startCell); // waiting is always possible
+            }
+            next.andNot(blasts[t]);
+        }
+        return !reachable[HORIZON].isEmpty();
+    }
+
+    /**
+     * @return the move of the last blast of the bombs, at most HORIZON: the horizon a retreat simulation
+     * has to build, normally the timer of its new bomb
+     */
+    static int lastBlast(final BombStore bombs, final IntegerMap explosionMap) {
+        int last = 0;
+        for (int bomb = 0; bomb < bombs.count; ++bomb) {
+            final int explosionTime = explosionMap.at(bombs.cells[bomb]);
+            if (explosionTime != Bomb.NO_EXPLOSION) {
+                last = Math.max(last, explosionTime - 1);
+            }
+        }
+        return Math.min(last, HORIZON);
+    }
+
+    /**
+     * Safe cells for retreat simulations, walked as the path search walks: breadth-first over the cells
+     * open now, without waiting, a cell is entered only if it does not burn on arrival. It counts if it is
+     * never blasted after that. One ring of new cells per move, the blasts end at the horizon and the rings
+     * go on until the limit or until nothing new is reached. Touches no board of expand() or backtrack().
+     *
+     * @return number of safe cells, at most limit, 0 if every way out burns at some turn
+     */
+    int countSafeCells(final int startCell, final int limit) {
+        BitBoard ring = frontier;
+        BitBoard next = nextFrontier;
+        ring.clear();
+        if (!blasts[0].get(startCell)) {
+            ring.set(startCell);
+        }
+        seen.copyFrom(ring);
+        int count = 0;
+        for (int t = 0; !ring.isEmpty(); ++t) {
+            source.copyFrom(ring);
+            source.andNot(dangerFrom[Math.min(t + 1, horizon + 1)]);
+            count += source.cardinality();
+            if (count >= limit) {
+                return limit;
+            }
+            topology.spread(ring, next, scratch);
+            next.and(passable[0]);
+            next.andNot(seen);
+            if (t < horizon) {
+                next.andNot(blasts[t + 1]); // may still be entered later, when the blast is over
+            }
+            seen.or(next);
+            final BitBoard reached = next;
+            next = ring;
+            ring = reached;
+        }
+        return count;
+    }
+
+    /**
+     * Fills survivable from the last expand().
+     */
+    void backtrack() {
+        survivable[HORIZON].copyFrom(reachable[HORIZON]);
+        for (int t = HORIZON - 1; t >= 0; --t) {
+            final BitBoard later = survivable[t + 1];
+            source.copyFrom(later);
+            if (startBlocked) {
+                source.clear(start);
+            }
+            topology.spread(source, survivable[t], scratch);
+            if (later.get(start)) {
+                survivable[t].set(start);
+            }
+            survivable[t].and(reachable[t]);
+        }
+    }
+}
+
+/**
+ * Predicted enemy bombs. Every enemy with a bomb in hand is assumed to drop it on any cell it can reach within
+ * HORIZON moves with equal chance; threat[cell] is the chance, in per mille and summed over the enemies up to
+ * 1000, that such a bomb covers the cell. The reachable cells of all enemies are found by bit-parallel
+ * spreading on the same buffers, the blasts are walked along the topology rays. Target utilities pay cost(),
+ * the path search takes the less threatened of equally short routes, the dodge move keeps off avoid() cells
+ * while it can and retreats break ties on the threat.
+ */
+class ThreatLayer {
+    static final int HORIZON = Integer.getInteger("hypersonic.threatHorizon", 3);
+    static final int CERTAIN = 1000;
+    // cells at least this threatened are left to the dodge move only when nothing else survives as well
+    static final int AVOID = CERTAIN / 2;
+    // utility points a target loses when an enemy bomb is certain to cover it
+    static final int COST = Integer.getInteger("hypersonic.threatCost", 3);
+
+    private final GridTopology topology;
+    final int[] threat;
+    private final BitBoard reach;
+    private final BitBoard next;
+    private final BitBoard scratch;
+
+    ThreatLayer(GridTopology topology) {
+        this.topology = topology;
+        final int size = topology.width * topology.height;
+        threat = new int[size];
+        reach = new BitBoard(size);
+        next = new BitBoard(size);
+        scratch = new BitBoard(size);
+    }
+
+    void update(final World world, final TypeMap typeMap) {
+        Arrays.fill(threat, 0);
+        for (final Boomer enemy : world.players) {
+            if (enemy == world.player || !enemy.alive || enemy.bombsAvailable == 0) {
+                continue;
+            }
+            // one spread per enemy, its share is split over its own reach
+            reach.clear();
+            reach.set(typeMap.index(enemy.position));
+            for (int move = 0; move < HORIZON; ++move) {
+                topology.spread(reach, next, scratch);
+                next.and(typeMap.passable);
+                reach.or(next);
+            }
+            final int share = CERTAIN / reach.cardinality();
+            for (int cell = reach.nextSetBit(0); cell >= 0; cell = reach.nextSetBit(cell + 1)) {
+                addBlast(cell, enemy.explosionRange, share, typeMap);
+            }
+        }
+    }
+
+    int cost(final int cell) {
+        return threat[cell] * COST / CERTAIN;
+    }
+
+    boolean avoid(final int cell) {
+        return threat[cell] >= AVOID;
+    }
+
+    private void addBlast(final int bombCell, final int explosionRange, final int share, final TypeMap typeMap) {
+        threat[bombCell] = Math.min(CERTAIN, threat[bombCell] + share);
+        for (int direction = 0; direction < GridTopology.DIRECTION_COUNT; ++direction) {
+            final int[] ray = topology.ray(bombCell, direction);
+            final int length = GridTopology.rayLength(ray, explosionRange);
+            for (int step = 0; step < length; ++step) {
+                final int cell = ray[step];
+                threat[cell] = Math.min(CERTAIN, threat[cell] + share);
+                if (typeMap.explosionStoppers.get(cell)) {
+                    break;
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Boxes hit by a bomb of the player's range on each cell, counted by box type, for utility scoring.
+ * A footprint only depends on the stoppers, boxes and doomed objects along its cross, so update() drops
+ * the footprints whose cross saw such a change since the previous update, and all of them on a range change.
+ * The others are read back as they are, the cross is walked again only for the dropped ones.
+ */
+class FootprintCache {
+    private static final int BOX_TYPES = 3;
+    private static final int FIRST_BOX_TYPE = Cell.Type.Box.ordinal();
+
+    private final GridTopology topology;
+    private final int[] counts; // BOX_TYPES per cell, in Cell.Type order
+    private final BitBoard valid;
+    private final BitBoard previousStoppers;
+    private final BitBoard previousBoxes;
+    private final BitBoard previousDoomed;
+    private final BitBoard changed;
+    private final BitBoard scratch;
+    private int explosionRange;
+
+    FootprintCache(GridTopology topology) {
+        this.topology = topology;
+        final int size = topology.width * topology.height;
+        counts = new int[size * BOX_TYPES];
+        valid = new BitBoard(size);
+        previousStoppers = new BitBoard(size);
+        previousBoxes = new BitBoard(size);
+        previousDoomed = new BitBoard(size);
+        changed = new BitBoard(size);
+        scratch = new BitBoard(size);
+    }
+
+    void update(final TypeMap typeMap, final BitBoard willBeDestroyedObjects, final int explosionRange) {
+        if (explosionRange != this.explosionRange) {
+            this.explosionRange = explosionRange;
+            valid.clear();
+        } else {
+            changed.copyFrom(previousStoppers);
+            changed.xor(typeMap.explosionStoppers);
+            scratch.copyFrom(previousBoxes);
+            scratch.xor(typeMap.boxes);
+            changed.or(scratch);
+            scratch.copyFrom(previousDoomed);
+            scratch.xor(willBeDestroyedObjects);
+            changed.or(scratch);
+            for (int cell = changed.nextSetBit(0); cell >= 0; cell = changed.nextSetBit(cell + 1)) {
+                invalidateCross(cell);
+            }
+        }
+        previousStoppers.copyFrom(typeMap.explosionStoppers);
+        previousBoxes.copyFrom(typeMap.boxes);
+        previousDoomed.copyFrom(willBeDestroyedObjects);
+    }
+
+    /**
+     * @return sum of UtilityEvaluator.boxValue() over the boxes hit from bombCell, as of the last update()
+     */
+    int boxUtility(final int bombCell, final TypeMap typeMap, final BitBoard willBeDestroyedObjects, final int bombCapacity) {
+        if (!valid.get(bombCell)) {
+            calculate(bombCell, typeMap, willBeDestroyedObjects);
+        }
+        int utility = 0;
+        for (int type = 0; type < BOX_TYPES; ++type) {
+            final int count = counts[bombCell * BOX_TYPES + type];
+            if (count != 0) {
+                utility += count * UtilityEvaluator.boxValue(Cell.Type.VALUES[FIRST_BOX_TYPE + type], bombCapacity, explosionRange);
+            }
+        }
+        return utility;
+    }
+
+    private void calculate(final int bombCell, final TypeMap typeMap, final BitBoard willBeDestroyedObjects) {
+        final int base = bombCell * BOX_TYPES;
+        Arrays.fill(counts, base, base + BOX_TYPES, 0);
+        for (int direction = 0; direction < GridTopology.DIRECTION_COUNT; ++direction) {
+            final int[] ray = topology.ray(bombCell, direction);
+            final int length = GridTopology.rayLength(ray, explosionRange);
+            for (int step = 0; step < length; ++step) {
+                final int cell = ray[step];
+                if (typeMap.boxes.get(cell) && !willBeDestroyedObjects.get(cell)) {
+                    ++counts[base + typeMap.at(cell).ordinal() - FIRST_BOX_TYPE];
+                }
+                if (typeMap.explosionStoppers.get(cell)) {
+                    break;
+                }
+            }
+        }
+        valid.set(bombCell);
+    }
+
+    /**
+     * Drops every footprint that reaches the cell, stoppers aside.
+     */
+    private void invalidateCross(final int cell) {
+        valid.clear(cell);
+        for (int direction = 0; direction < GridTopology.DIRECTION_COUNT; ++direction) {
+            final int[] ray = topology.ray(cell, direction);
+            final int length = GridTopology.rayLength(ray, explosionRange);
+            for (int step = 0; step < length; ++step) {
+                valid.clear(ray[step]);
+            }
+        }
+    }
+}
+
+/**
+ * Owns every per-cell buffer the bot needs. Allocated once in initWorld(),
+ * each turn and each retreat simulation just resets the maps it borrows.
+ */
+class MapArena {
+    final TypeMap typeMap;
+    final IntegerMap utilityMap;
+    final PathMap pathMap;
+    final IntegerMap explosionMap;
+    final IntegerMap safetyMap;
+
+    // scratch maps for the simulations of a new bomb
+    final TypeMap typeMapModel;
+    final IntegerMap explosionMapModel;
+    final BombStore bombsModel;
+    final DangerGrid dangerGrid;
+
+    // cells with any explosion in explosionMap / explosionMapModel
+    final BitBoard explosionArea;
+    final BitBoard explosionAreaModel;
+    final BitBoard willBeDestroyedObjects;
+    final BitBoard willBeDestroyedObjectsModel;
+
+    // scratch boards of the blast calculations
+    final BitBoard blastSource;
+    final BitBoard blast;
+    final BitBoard blastRay;
+
+    // state of the path search
+    final BooleanMap utilityCalculated;
+    final BooleanMap pathCalculated;
+    final CellQueue queue;
+    final int[] visitOrder; // cells settled by the path search, by distance
+    final int[] pathThreats; // threat summed along the path to a cell
+    int visitCount;
+
+    // target search of the turn: candidates and the retreat found for a target cell
+    final TargetCandidates targetCandidates = new TargetCandidates();
+    final IntegerMap retreats;
+    final int[] retreatSafetyCellCounts; // safe cells of the retreat in retreats
+
+    // scratch of Player.findCellsToRetreat(), per target and per (target, adjacent cell) pair
+    final Cell[] retreatTargets;
+    final int[] retreatDistances;
+    final Cell[] cellsToRetreat;
+    final boolean[] knownRetreats;
+    final int[] maxSafetyCellCounts;
+    final int[] pairTargets;
+    final Cell[] pairCells;
+    final int[] safetyCellCounts;
+    final AtomicIntegerArray retreatFound; // set by the workers once a target has any retreat
+
+    MapArena(GridTopology topology) {
+        final int width = topology.width;
+        final int height = topology.height;
+        typeMap = TypeMap.createTypeMap(width, height);
+        utilityMap = IntegerMap.createUtilityMap(width, height);
+        pathMap = PathMap.createPathMap(width, height);
+        explosionMap = IntegerMap.createExplosionMap(width, height);
+        safetyMap = IntegerMap.createSafetyMap(width, height);
+        typeMapModel = TypeMap.createTypeMap(width, height);
+        explosionMapModel = IntegerMap.createExplosionMap(width, height);
+        bombsModel = new BombStore(width * height);
+        dangerGrid = new DangerGrid(topology);
+        utilityCalculated = BooleanMap.createFalseMap(width, height);
+        pathCalculated = BooleanMap.createFalseMap(width, height);
+        queue = new CellQueue(width * height);
+        visitOrder = new int[width * height];
+        pathThreats = new int[width * height];
+        retreats = IntegerMap.createRetreatMap(width, height);
+        final int size = width * height;
+        retreatSafetyCellCounts = new int[size];
+        explosionArea = new BitBoard(size);
+        explosionAreaModel = new BitBoard(size);
+        willBeDestroyedObjects = new BitBoard(size);
+        willBeDestroyedObjectsModel = new BitBoard(size);
+        blastSource = new BitBoard(size);
+        blast = new BitBoard(size);
+        blastRay = new BitBoard(size);
+        retreatTargets = new Cell[size];
+        retreatDistances = new int[size];
+        cellsToRetreat = new Cell[size];
+        knownRetreats = new boolean[size];
+        maxSafetyCellCounts = new int[size];
+        pairTargets = new int[size * GridTopology.DIRECTION_COUNT];
+        pairCells = new Cell[size * GridTopology.DIRECTION_COUNT];
+        safetyCellCounts = new int[size * GridTopology.DIRECTION_COUNT];
+        retreatFound = new AtomicIntegerArray(size);
+    }
+
+    void resetTurnMaps() {
+        typeMap.fill(Cell.Type.Floor);
+        utilityMap.fill(0);
+        pathMap.reset();
+        explosionMap.fill(Bomb.NO_EXPLOSION);
+        safetyMap.fill(Bomb.ALREADY_EXPLODED);
+        explosionArea.clear();
+        willBeDestroyedObjects.clear();
+        retreats.fill(Player.RETREAT_UNKNOWN);
+    }
+
+    void resetModelMaps(TypeMap originalTypeMap) {
+        typeMapModel.copyFrom(originalTypeMap);
+        explosionMapModel.fill(Bomb.NO_EXPLOSION);
+        explosionAreaModel.clear();
+        willBeDestroyedObjectsModel.clear();
+    }
+
+    void resetSearchFlags() {
+        utilityCalculated.fill(false);
+        pathCalculated.fill(false);
+    }
+}
+
+/**
+ * Explosion map maintained between turns. It remembers the blast area and the explosion turn
+ * (including chain reactions) of every bomb. On update it recomputes only the blast areas crossed
+ * by a changed stopper and rewrites only the cells covered by bombs that appeared, disappeared or
+ * changed their explosion turn. The result is exactly what calculateExplosionMap() gives from scratch.
+ */
+class ExplosionEngine {
+    private static final int NO_EXPLOSION = 0;
+
+    private final GridTopology topology;
+    private final int size;
+    private int turn;
+
+    // per cell with a bomb
+    private final BitBoard[] blasts;
+    private final int[] ranges;
+    private final int[] effectiveTurns; // absolute turn of the explosion, chain reactions included
+    private final boolean[] present;
+
+    // bombs of the current and of the previous turn, in explosion order
+    private int[] bombCells;
+    private int bombCount;
+    private int[] previousBombCells;
+    private int previousBombCount;
+    private final int[] bombTimers;
+
+    private final int[] explosionTurns; // per cell, absolute, NO_EXPLOSION if the cell is safe
+    private final BitBoard stoppers;
+    private final BitBoard changedStoppers;
+    private final BitBoard dirty;
+    private final BitBoard dirtyBlast;
+    private final BitBoard blastSource;
+    private final BitBoard blastRay;
+
+    ExplosionEngine(GridTopology topology) {
+        this.topology = topology;
+        size = topology.width * topology.height;
+        blasts = new BitBoard[size];
+        ranges = new int[size];
+        effectiveTurns = new int[size];
+        present = new boolean[size];
+        bombCells = new int[size];
+        previousBombCells = new int[size];
+        bombTimers = new int[size];
+        explosionTurns = new int[size];
+        stoppers = new BitBoard(size);
+        changedStoppers = new BitBoard(size);
+        dirty = new BitBoard(size);
+        dirtyBlast = new BitBoard(size);
+        blastSource = new BitBoard(size);
+        blastRay = new BitBoard(size);
+    }
+
+    /**
+     * Brings the engine to the bombs of the new turn and writes the result into a freshly reset explosion map.
+     */
+    void update(final BombStore bombs, final TypeMap typeMap, final IntegerMap explosionMap, final BitBoard explosionArea) {
+        ++turn;
+        changedStoppers.copyFrom(stoppers);
+        changedStoppers.xor(typeMap.explosionStoppers);
+        stoppers.copyFrom(typeMap.explosionStoppers);
+        dirty.clear();
+
+        final int[] swap = previousBombCells;
+        previousBombCells = bombCells;
+        previousBombCount = bombCount;
+        bombCells = swap;
+        bombCount = 0;
+        for (int i = 0; i < previousBombCount; ++i) {
+            present[previousBombCells[i]] = false;
+        }
+
+        // stable sort by timer, as calculateExplosionMap() does
+        for (int i = 0; i < bombs.count; ++i) {
+            final int cell = bombs.cells[i];
+            final int timer = bombs.timers[i];
+            int slot = bombCount++;
+            while (slot > 0 && bombTimers[slot - 1] > timer) {
+                bombCells[slot] = bombCells[slot - 1];
+                bombTimers[slot] = bombTimers[slot - 1];
+                --slot;
+            }
+            bombCells[slot] = cell;
+            bombTimers[slot] = timer;
+            present[cell] = true;
+
+            final boolean known = ranges[cell] == bombs.ranges[i];
+            if (!known || changedStoppers.intersects(blasts[cell])) {
+                if (ranges[cell] != 0) {
+                    dirty.or(blasts[cell]);
+                }
+                ranges[cell] = bombs.ranges[i];
+                calculateBlast(cell);
+                effectiveTurns[cell] = NO_EXPLOSION;
+            }
+        }
+
+        // bombs that are gone
+        for (int i = 0; i < previousBombCount; ++i) {
+            final int cell = previousBombCells[i];
+            if (!present[cell]) {
+                dirty.or(blasts[cell]);
+                ranges[cell] = 0;
+            }
+        }
+
+        // chain reactions: a bomb explodes together with the first earlier bomb that covers it
+        for (int i = 0; i < bombCount; ++i) {
+            final int cell = bombCells[i];
+            int effectiveTurn = NO_EXPLOSION;
+            for (int j = 0; j < i; ++j) {
+                final int earlierCell = bombCells[j];
+                if (blasts[earlierCell].get(cell)
+                        && (effectiveTurn == NO_EXPLOSION || effectiveTurns[earlierCell] < effectiveTurn)) {
+                    effectiveTurn = effectiveTurns[earlierCell];
+                }
+            }
+            if (effectiveTurn == NO_EXPLOSION) {
+                effectiveTurn = turn + bombTimers[i];
+            }
+            if (effectiveTurn != effectiveTurns[cell]) {
+                effectiveTurns[cell] = effectiveTurn;
+                dirty.or(blasts[cell]);
+            }
+        }
+
+        // rewrite the affected cells only
+        for (int cell = dirty.nextSetBit(0); cell >= 0; cell = dirty.nextSetBit(cell + 1)) {
+            explosionTurns[cell] = NO_EXPLOSION;
+        }
+        explosionArea.clear();
+        for (int i = 0; i < bombCount; ++i) {
+            final int bombCell = bombCells[i];
+            final BitBoard blast = blasts[bombCell];
+            explosionArea.or(blast);
+            if (!blast.intersects(dirty)) {
+                continue;
+            }
+            dirtyBlast.copyFrom(blast);
+            dirtyBlast.and(dirty);
+            final int effectiveTurn = effectiveTurns[bombCell];
+            for (int cell = dirtyBlast.nextSetBit(0); cell >= 0; cell = dirtyBlast.nextSetBit(cell + 1)) {
+                final int previousTurn = explosionTurns[cell];
+                if (previousTurn == NO_EXPLOSION || previousTurn > effectiveTurn) {
+                    explosionTurns[cell] = effectiveTurn;
+                }
+            }
+        }
+        for (int cell = explosionArea.nextSetBit(0); cell >= 0; cell = explosionArea.nextSetBit(cell + 1)) {
+            explosionMap.set(cell, explosionTurns[cell] - turn);
+        }
+    }
+
+    private void calculateBlast(int cell) {
+        if (blasts[cell] == null) {
+            blasts[cell] = new BitBoard(size);
+        }
+        final BitBoard blast = blasts[cell];
+        blast.clear();
+        blastSource.clear();
+        blastSource.set(cell);
+        topology.blastFill(blastSource, ranges[cell], stoppers, blast, blastRay);
+    }
+}
+
+class World {
+    final Grid grid = new Grid();
+    final Boomer[] players = new Boomer[GameState.MAX_PLAYERS]; // by id, updated in place
+    Boomer player;
+    BombStore bombs; // sized by init()
+    int boxCount;
+    int bonusCount;
+    int bombCount;
+    boolean changed;
+    boolean playersBombCountChanged = false;
+
+    World() {
+        for (int id = 0; id < players.length; ++id) {
+            players[id] = new Boomer();
+            players[id].id = id;
+            players[id].alive = false;
+        }
+        player = players[0];
+    }
+
+    /**
+     * Call after the grid is initialised, playerId is the one of this bot.
+     */
+    void init(int playerId) {
+        player = players[playerId];
+        bombs = new BombStore(grid.width * grid.height);
+    }
+}
+
+/**
+ * Zobrist keys of the GameState features. Cell types and player positions have tables,
+ * bombs (cell, timer, range, owner) and player stats have too many combinations for a table
+ * and get their keys from the same generator on the fly.
+ */
+class Zobrist {
+    private static final int TYPE_COUNT = Cell.Type.VALUES.length;
+
+    private final int size;
+    private final long[] cellKeys; // cell * TYPE_COUNT + type
+    private final long[] playerKeys; // player * size + cell
+
+    Zobrist(int size) {
+        this.size = size;
+        cellKeys = new long[size * TYPE_COUNT];
+        playerKeys = new long[GameState.MAX_PLAYERS * size];
+        long seed = 0x2545F4914F6CDD1DL;
+        for (int i = 0; i < cellKeys.length; ++i) {
+            seed += 0x9E3779B97F4A7C15L;
+            cellKeys[i] = mix(seed);
+        }
+        for (int i = 0; i < playerKeys.length; ++i) {
+            seed += 0x9E3779B97F4A7C15L;
+            playerKeys[i] = mix(seed);
+        }
+    }
+
+    long cell(int cell, byte type) {
+        return cellKeys[cell * TYPE_COUNT + type];
+    }
+
+    long player(int player, int cell, int bombsAvailable, int explosionRange) {
+        return playerKeys[player * size + cell]
+                ^ mix(0x5000000000000000L | ((long) player << 40) | ((long) bombsAvailable << 20) | explosionRange);
+    }
+
+    static long bomb(int cell, int timer, int explosionRange, int owner) {
+        return mix(0x3000000000000000L | ((long) owner << 48) | ((long) cell << 24) | ((long) timer << 12) | explosionRange);
+    }
+
+    /**
+     * splitmix64 finalizer
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
+
+/**
+ * Compact copy of the whole game for lookahead: cell types, players and bombs in primitive arrays.
+ * A search keeps one preallocated state per ply and does child.copyFrom(parent), child.step(actions).
+ * step() follows the referee: bombs tick and explode with chain reactions, boxes drop their items,
+ * players in the blast die, then players place bombs, move and pick up items.
+ * The Zobrist hash is kept up to date by every change, it covers the board, bombs and living players
+ * but not the turn and the destroyed box counters.
+ */
+class GameState {
+    static final int MAX_PLAYERS = 4;
+    static final int NO_CELL = -1;
+
+    // actions, a direction optionally combined with BOMB; the bomb is placed before the move
+    static final int STAY = 0;
+    static final int LEFT = 1;
+    static final int RIGHT = 2;
+    static final int UP = 3;
+    static final int DOWN = 4;
+    static final int BOMB = 8;
+    static final int[] ACTIONS = {STAY, LEFT, RIGHT, UP, DOWN, STAY | BOMB, LEFT | BOMB, RIGHT | BOMB, UP | BOMB, DOWN | BOMB};
+
+    private static final byte FLOOR = (byte) Cell.Type.Floor.ordinal();
+    private static final byte BOX = (byte) Cell.Type.Box.ordinal();
+    private static final byte BOX_WITH_EXTRA_RANGE = (byte) Cell.Type.BoxWithExtraRange.ordinal();
+    private static final byte BOX_WITH_EXTRA_BOMB = (byte) Cell.Type.BoxWithExtraBomb.ordinal();
+    private static final byte EXTRA_RANGE = (byte) Cell.Type.ExtraRange.ordinal();
+    private static final byte EXTRA_BOMB = (byte) Cell.Type.ExtraBomb.ordinal();
+    private static final byte WALL = (byte) Cell.Type.Wall.ordinal();
+
+    final GridTopology topology;
+    final Zobrist zobrist;
+    final int size;
+    int turn;
+    long hash;
+
+    final byte[] cells; // Cell.Type ordinals, bombs are kept apart
+
+    final int[] playerCells = new int[MAX_PLAYERS]; // NO_CELL for dead or absent players
+    final int[] bombsAvailable = new int[MAX_PLAYERS];
+    final int[] explosionRanges = new int[MAX_PLAYERS];
+    final int[] destroyedBoxes = new int[MAX_PLAYERS];
+
+    int bombCount;
+    final int[] bombCells;
+    final int[] bombTimers;
+    final int[] bombRanges;
+    final int[] bombOwners;
+    final BitBoard bombBoard;
+
+    // scratch of step(), not part of the state
+    private final BitBoard hit;
+    private final int[] explodingBombs;
+    private final boolean[] exploding;
+    private final byte[] boxHitters; // owner bits of the bombs that hit a box
+
+    GameState(GridTopology topology) {
+        this.topology = topology;
+        zobrist = topology.zobrist;
+        size = topology.width * topology.height;
+        cells = new byte[size];
+        bombCells = new int[size];
+        bombTimers = new int[size];
+        bombRanges = new int[size];
+        bombOwners = new int[size];
+        bombBoard = new BitBoard(size);
+        hit = new BitBoard(size);
+        explodingBombs = new int[size];
+        exploding = new boolean[size];
+        boxHitters = new byte[size];
+    }
+
+    void copyFrom(GameState other) {
+        turn = other.turn;
+        hash = other.hash;
+        System.arraycopy(other.cells, 0, cells, 0, size);
+        System.arraycopy(other.playerCells, 0, playerCells, 0, MAX_PLAYERS);
+        System.arraycopy(other.bombsAvailable, 0, bombsAvailable, 0, MAX_PLAYERS);
+        System.arraycopy(other.explosionRanges, 0, explosionRanges, 0, MAX_PLAYERS);
+        System.arraycopy(other.destroyedBoxes, 0, destroyedBoxes, 0, MAX_PLAYERS);
+        bombCount = other.bombCount;
+        System.arraycopy(other.bombCells, 0, bombCells, 0, bombCount);
+        System.arraycopy(other.bombTimers, 0, bombTimers, 0, bombCount);
+        System.arraycopy(other.bombRanges, 0, bombRanges, 0, bombCount);
+        System.arraycopy(other.bombOwners, 0, bombOwners, 0, bombCount);
+        bombBoard.copyFrom(other.bombBoard);
+    }
+
+    /**
+     * Takes the state of the current turn, the type map must already contain the turn's cells.
+     */
+    void load(World world, TypeMap typeMap) {
+        for (int cell = 0; cell < size; ++cell) {
+            final Cell.Type type = typeMap.at(cell);
+            cells[cell] = type == Cell.Type.Bomb ? FLOOR : (byte) type.ordinal();
+        }
+        Arrays.fill(playerCells, NO_CELL);
+        for (final Boomer boomer : world.players) {
+            loadPlayer(boomer, typeMap);
+        }
+        bombCount = 0;
+        bombBoard.clear();
+        final BombStore bombs = world.bombs;
+        for (int i = 0; i < bombs.count; ++i) {
+            addBomb(bombs.cells[i], bombs.timers[i], bombs.ranges[i], bombs.owners[i]);
+        }
+        hash = calculateHash();
+    }
+
+    long calculateHash() {
+        long result = 0;
+        for (int cell = 0; cell < size; ++cell) {
+            result ^= zobrist.cell(cell, cells[cell]);
+        }
+        for (int player = 0; player < MAX_PLAYERS; ++player) {
+            result ^= playerKey(player);
+        }
+        for (int i = 0; i < bombCount; ++i) {
+            result ^= bombKey(i);
+        }
+        return result;
+    }
+
+    void kill(int player) {
+        hash ^= playerKey(player);
+        playerCells[player] = NO_CELL;
+    }
+
+    private void loadPlayer(Boomer boomer, TypeMap typeMap) {
+        if (!boomer.alive) {
+            return;
+        }
+        playerCells[boomer.id] = typeMap.index(boomer.position);
+        bombsAvailable[boomer.id] = boomer.bombsAvailable;
+        explosionRanges[boomer.id] = boomer.explosionRange;
+    }
+
+    boolean isAlive(int player) {
+        return playerCells[player] != NO_CELL;
+    }
+
+    /**
+     * Plays one round.
+     *
+     * @param actions per player id, ignored for dead players
+     */
+    void step(int[] actions) {
+        ++turn;
+        explode();
+        for (int player = 0; player < MAX_PLAYERS; ++player) {
+            final int cell = playerCells[player];
+            if ((actions[player] & BOMB) != 0 && canPlaceBomb(player)) {
+                hash ^= playerKey(player);
+                --bombsAvailable[player];
+                hash ^= playerKey(player);
+                addBomb(cell, Bomb.COUNTDOWN, explosionRanges[player], player);
+            }
+        }
+        for (int player = 0; player < MAX_PLAYERS; ++player) {
+            final int cell = playerCells[player];
+            if (cell != NO_CELL) {
+                hash ^= playerKey(player);
+                playerCells[player] = moveTarget(cell, actions[player] & ~BOMB);
+                hash ^= playerKey(player);
+            }
+        }
+        pickUpItems();
+    }
+
+    private void explode() {
+        int explodingCount = 0;
+        for (int i = 0; i < bombCount; ++i) {
+            hash ^= bombKey(i);
+            exploding[i] = --bombTimers[i] <= 0;
+            if (exploding[i]) {
+                explodingBombs[explodingCount++] = i;
+            }
+        }
+        if (explodingCount == 0) {
+            for (int i = 0; i < bombCount; ++i) {
+                hash ^= bombKey(i);
+            }
+            return;
+        }
+        hit.clear();
+        // boxes, items and walls stop a blast and are evaluated before anything is destroyed,
+        // a bomb in the way stops it too and joins the explosion
+        while (explodingCount > 0) {
+            final int bomb = explodingBombs[--explodingCount];
+            final int bombCell = bombCells[bomb];
+            hit.set(bombCell);
+            for (int direction = 0; direction < GridTopology.DIRECTION_COUNT; ++direction) {
+                final int[] ray = topology.ray(bombCell, direction);
+                final int length = GridTopology.rayLength(ray, bombRanges[bomb]);
+                for (int step = 0; step < length; ++step) {
+                    final int cell = ray[step];
+                    final byte type = cells[cell];
+                    if (type == WALL) {
+                        break;
+                    }
+                    hit.set(cell);
+                    if (type == BOX || type == BOX_WITH_EXTRA_RANGE || type == BOX_WITH_EXTRA_BOMB) {
+                        boxHitters[cell] |= 1 << bombOwners[bomb];
+                        break;
+                    }
+                    if (type == EXTRA_RANGE || type == EXTRA_BOMB) {
+                        break;
+                    }
+                    if (bombBoard.get(cell)) {
+                        final int other = findBomb(cell);
+                        if (!exploding[other]) {
+                            exploding[other] = true;
+                            explodingBombs[explodingCount++] = other;
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+        for (int cell = hit.nextSetBit(0); cell >= 0; cell = hit.nextSetBit(cell + 1)) {
+            final byte type = cells[cell];
+            if (type == BOX_WITH_EXTRA_RANGE) {
+                setCell(cell, EXTRA_RANGE);
+            } else if (type == BOX_WITH_EXTRA_BOMB) {
+                setCell(cell, EXTRA_BOMB);
+            } else {
+                setCell(cell, FLOOR);
+            }
+            final int hitters = boxHitters[cell];
+            if (hitters != 0) {
+                for (int player = 0; player < MAX_PLAYERS; ++player) {
+                    if ((hitters & (1 << player)) != 0) {
+                        ++destroyedBoxes[player];
+                    }
+                }
+                boxHitters[cell] = 0;
+            }
+        }
+        for (int player = 0; player < MAX_PLAYERS; ++player) {
+            if (playerCells[player] != NO_CELL && hit.get(playerCells[player])) {
+                hash ^= playerKey(player);
+                playerCells[player] = NO_CELL;
+            }
+        }
+        // remove exploded bombs and give them back to the owners
+        int kept = 0;
+        for (int i = 0; i < bombCount; ++i) {
+            if (exploding[i]) {
+                final int owner = bombOwners[i];
+                hash ^= playerKey(owner);
+                ++bombsAvailable[owner];
+                hash ^= playerKey(owner);
+                bombBoard.clear(bombCells[i]);
+            } else {
+                bombCells[kept] = bombCells[i];
+                bombTimers[kept] = bombTimers[i];
+                bombRanges[kept] = bombRanges[i];
+                bombOwners[kept] = bombOwners[i];
+                hash ^= bombKey(kept);
+                ++kept;
+            }
+        }
+        bombCount = kept;
+    }
+
+    boolean canPlaceBomb(int player) {
+        final int cell = playerCells[player];
+        return cell != NO_CELL && bombsAvailable[player] > 0 && !bombBoard.get(cell);
+    }
+
+    /**
+     * @return the cell a move from the given one ends in, the same cell if the move is blocked
+     */
+    int moveTarget(int cell, int direction) {
+        final int x = cell % topology.width;
+        final int y = cell / topology.width;
+        final int target;
+        switch (direction) {
+            case LEFT:
+                target = x > 0 ? cell - 1 : NO_CELL;
+                break;
+            case RIGHT:
+                target = x + 1 < topology.width ? cell + 1 : NO_CELL;
+                break;
+            case UP:
+                target = y > 0 ? cell - topology.width : NO_CELL;
+                break;
+            case DOWN:
+                target = y + 1 < topology.height ? cell + topology.width : NO_CELL;
+                break;
+            default:
+                return cell;
+        }
+        return target != NO_CELL && isPassable(target) ? target : cell;
+    }
+
+    boolean isPassable(int cell) {
+        final byte type = cells[cell];
+        return (type == FLOOR || type == EXTRA_RANGE || type == EXTRA_BOMB) && !bombBoard.get(cell);
+    }
+
+    private void pickUpItems() {
+        // players on the same item all get it
+        for (int player = 0; player < MAX_PLAYERS; ++player) {
+            final int cell = playerCells[player];
+            if (cell == NO_CELL) {
+                continue;
+            }
+            if (cells[cell] == EXTRA_RANGE) {
+                hash ^= playerKey(player);
+                ++explosionRanges[player];
+                hash ^= playerKey(player);
+            } else if (cells[cell] == EXTRA_BOMB) {
+                hash ^= playerKey(player);
+                ++bombsAvailable[player];
+                hash ^= playerKey(player);
+            }
+        }
+        for (int player = 0; player < MAX_PLAYERS; ++player) {
+            final int cell = playerCells[player];
+            if (cell != NO_CELL) {
+                setCell(cell, FLOOR);
+            }
+        }
+    }
+
+    void addBomb(int cell, int timer, int explosionRange, int owner) {
+        bombCells[bombCount] = cell;
+        bombTimers[bombCount] = timer;
+        bombRanges[bombCount] = explosionRange;
+        bombOwners[bombCount] = owner;
+        hash ^= bombKey(bombCount);
+        ++bombCount;
+        bombBoard.set(cell);
+    }
+
+    private void setCell(int cell, byte type) {
+        hash ^= zobrist.cell(cell, cells[cell]) ^ zobrist.cell(cell, type);
+        cells[cell] = type;
+    }
+
+    private long playerKey(int player) {
+        final int cell = playerCells[player];
+        return cell == NO_CELL ? 0 : zobrist.player(player, cell, bombsAvailable[player], explosionRanges[player]);
+    }
+
+    private long bombKey(int i) {
+        return Zobrist.bomb(bombCells[i], bombTimers[i], bombRanges[i], bombOwners[i]);
+    }
+
+    private int findBomb(int cell) {
+        for (int i = 0; i < bombCount; ++i) {
+            if (bombCells[i] == cell) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
+
+/**
+ * Scores a simulated state for one player. Boxes and bonuses are valued with the weights
+ * of Player.calculateUtilityForCell(), so both planners chase the same things.
+ * Everything but the destroyed box counter depends on the hashed part of the state only,
+ * so that part is cached by Zobrist hash.
+ */
+class UtilityEvaluator {
+    static final int DEATH = Integer.MIN_VALUE / 2;
+
+    private static final int DESTROYED_BOX = 10;
+    private static final int PENDING_BOX = 10; // the same as destroyed, a bomb has no reason to wait
+    private static final int BOMB_SPOT = 3;
+    private static final int BONUS = 5;
+    private static final int DANGER = 10;
+
+    private static final byte BOX = (byte) Cell.Type.Box.ordinal();
+    private static final byte BOX_WITH_EXTRA_RANGE = (byte) Cell.Type.BoxWithExtraRange.ordinal();
+    private static final byte BOX_WITH_EXTRA_BOMB = (byte) Cell.Type.BoxWithExtraBomb.ordinal();
+    private static final byte EXTRA_RANGE = (byte) Cell.Type.ExtraRange.ordinal();
+    private static final byte EXTRA_BOMB = (byte) Cell.Type.ExtraBomb.ordinal();
+    private static final byte WALL = (byte) Cell.Type.Wall.ordinal();
+
+    private final BitBoard claimed;
+    final TranspositionTable cache;
+
+    UtilityEvaluator(int size, TranspositionTable cache) {
+        claimed = new BitBoard(size);
+        this.cache = cache;
+    }
+
+    static int boxValue(Cell.Type type, int bombCapacity, int explosionRange) {
+        switch (type) {
+            case Box:
+                return 1;
+            case BoxWithExtraBomb:
+                if (bombCapacity > 5) {
+                    return 1;
+                } else if (bombCapacity > 3) {
+                    return 2;
+                }
+                return 3;
+            case BoxWithExtraRange:
+                return explosionRange > 5 ? 1 : 2;
+            default:
+                return 0;
+        }
+    }
+
+    static int bonusValue(Cell.Type type, int bombsAvailable) {
+        int value = 2;
+        if (type == Cell.Type.ExtraBomb) {
+            value += 1;
+        }
+        if (bombsAvailable == 0) {
+            value += 1;
+        }
+        return value;
+    }
+
+    int evaluate(GameState state, int player) {
+        if (!state.isAlive(player)) {
+            return DEATH;
+        }
+        final long key = state.hash ^ Zobrist.mix(player + 1);
+        int score = cache.get(key);
+        if (score == TranspositionTable.MISSING) {
+            score = evaluateBoard(state, player);
+            cache.put(key, score);
+        }
+        return DESTROYED_BOX * state.destroyedBoxes[player] + score;
+    }
+
+    private int evaluateBoard(GameState state, int player) {
+        final int playerCell = state.playerCells[player];
+        int bombCapacity = state.bombsAvailable[player];
+        for (int i = 0; i < state.bombCount; ++i) {
+            if (state.bombOwners[i] == player) {
+                ++bombCapacity;
+            }
+        }
+        final int explosionRange = state.explosionRanges[player];
+        int score = 0;
+        // bonuses already taken, a marginal bonus is worth less as in boxValue()
+        for (int capacity = 2; capacity <= bombCapacity; ++capacity) {
+            score += BONUS * boxValue(Cell.Type.BoxWithExtraBomb, capacity - 1, explosionRange);
+        }
+        for (int range = 3; range <= explosionRange; ++range) {
+            score += BONUS * boxValue(Cell.Type.BoxWithExtraRange, bombCapacity, range - 1);
+        }
+
+        claimed.clear();
+        int danger = 0;
+        for (int i = 0; i < state.bombCount; ++i) {
+            final int bombCell = state.bombCells[i];
+            final boolean own = state.bombOwners[i] == player;
+            boolean hitsPlayer = bombCell == playerCell;
+            for (int direction = 0; direction < GridTopology.DIRECTION_COUNT; ++direction) {
+                final int[] ray = state.topology.ray(bombCell, direction);
+                final int length = GridTopology.rayLength(ray, state.bombRanges[i]);
+                for (int step = 0; step < length; ++step) {
+                    final int cell = ray[step];
+                    final byte type = state.cells[cell];
+                    if (type == WALL) {
+                        break;
+                    }
+                    if (cell == playerCell) {
+                        hitsPlayer = true;
+                    }
+                    if (isBox(type)) {
+                        if (own && !claimed.get(cell)) {
+                            score += PENDING_BOX;
+                        }
+                        claimed.set(cell);
+                        break;
+                    }
+                    if (type == EXTRA_RANGE || type == EXTRA_BOMB || state.bombBoard.get(cell)) {
+                        break;
+                    }
+                }
+            }
+            if (hitsPlayer) {
+                danger = Math.max(danger, Bomb.COUNTDOWN + 1 - state.bombTimers[i]);
+            }
+        }
+        score -= DANGER * danger;
+
+        // what a bomb from here would get
+        if (state.bombsAvailable[player] > 0 && !state.bombBoard.get(playerCell)) {
+            int spot = 0;
+            for (int direction = 0; direction < GridTopology.DIRECTION_COUNT; ++direction) {
+                final int[] ray = state.topology.ray(playerCell, direction);
+                final int length = GridTopology.rayLength(ray, explosionRange);
+                for (int step = 0; step < length; ++step) {
+                    final byte type = state.cells[ray[step]];
+                    if (isBox(type)) {
+                        if (!claimed.get(ray[step])) {
+                            spot += boxValue(Cell.Type.VALUES[type], bombCapacity, explosionRange);
+                        }
+                        break;
+                    }
+                    if (type == WALL || type == EXTRA_RANGE || type == EXTRA_BOMB) {
+                        break;
+                    }
+                }
+            }
+            score += BOMB_SPOT * spot;
+        }
+        return score;
+    }
+
+    private static boolean isBox(byte type) {
+        return type == BOX || type == BOX_WITH_EXTRA_RANGE || type == BOX_WITH_EXTRA_BOMB;
+    }
+}
+
+/**
+ * Fixed-size cache of ints keyed by Zobrist hashes. A key is probed in a short window of slots,
+ * when the window is full the entry of the oldest generation is replaced, so the entries of past turns
+ * go first but stay usable until then.
+ */
+class TranspositionTable {
+    static final int MISSING = Integer.MIN_VALUE;
+    private static final int PROBES = 4;
+    private static final long EMPTY = 0L;
+
+    private final long[] keys;
+    private final int[] values;
+    private final int[] generations;
+    private final int mask;
+    private int generation;
+
+    long hits;
+    long misses;
+
+    TranspositionTable(int capacityBits) {
+        keys = new long[1 << capacityBits];
+        values = new int[1 << capacityBits];
+        generations = new int[1 << capacityBits];
+        mask = (1 << capacityBits) - 1;
+    }
+
+    void nextGeneration() {
+        ++generation;
+        hits = 0;
+        misses = 0;
+    }
+
+    int get(long key) {
+        key = nonEmpty(key);
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        for (int probe = 0; probe < PROBES; ++probe) {
+            if (keys[slot] == key) {
+                generations[slot] = generation;
+                ++hits;
+                return values[slot];
+            }
+            if (keys[slot] == EMPTY) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        ++misses;
+        return MISSING;
+    }
+
+    void put(long key, int value) {
+        key = nonEmpty(key);
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        int victim = slot;
+        for (int probe = 0; probe < PROBES; ++probe) {
+            if (keys[slot] == key || keys[slot] == EMPTY) {
+                victim = slot;
+                break;
+            }
+            if (generations[slot] - generations[victim] < 0) {
+                victim = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[victim] = key;
+        values[victim] = value;
+        generations[victim] = generation;
+    }
+
+    private static long nonEmpty(long key) {
+        return key == EMPTY ? 1L : key;
+    }
+}
+
+abstract class Action implements Comparable<Action> {
+
+    static final int LOW_PRIORITY = 3;
+    static final int NORMAL_PRIORITY = 2;
+    static final int HIGH_PRIORITY = 1;
+
+    int priority = NORMAL_PRIORITY;
+    int order;
+
+    @Override
+    public int compareTo(Action o) {
+        final int priorityDelta = priority - o.priority;
+        if (priorityDelta != 0) {
+            return priorityDelta;
+        }
+        return (order - o.order);
+    }
+
+    abstract void execute(PrintStream out);
+
+    abstract boolean checkPreconditions();
+
+    abstract boolean checkPostconditions();
+}
+
+class Move extends Action {
+    private Boomer player;
+    private Position targetPosition;
+
+    Move(Position targetPosition, Boomer player) {
+        this.player = player;
+        this.targetPosition = targetPosition;
+    }
+
+    @Override
+    void execute(PrintStream out) {
+        out.println("MOVE " + targetPosition.x + " " + targetPosition.y);
+    }
+
+    @Override
+    boolean checkPreconditions() {
+        return !player.position.equals(targetPosition);
+    }
+
+    @Override
+    boolean checkPostconditions() {
+        return player.position.equals(targetPosition);
+    }
+
+    @Override
+    public String toString() {
+        return "Move " + targetPosition;
+    }
+}
+
+class SkipTurn extends Action {
+
+    private Boomer player;
+    private boolean done = false;
+    private String comment = "";
+
+    SkipTurn(Boomer player) {
+        this.player = player;
+    }
+
+    SkipTurn(Boomer player, String comment) {
+        this.player = player;
+        this.comment = comment;
+    }
+
+    @Override
+    void execute(PrintStream out) {
+        out.println("MOVE " + player.position.x + " " + player.position.y + " " + comment);
+        done = true;
+    }
+
+    @Override
+    boolean checkPreconditions() {
+        return true;
+    }
+
+    @Override
+    boolean checkPostconditions() {
+        return done;
+    }
+
+    @Override
+    public String toString() {
+        return "SkipTurn at" + player.position + " (" + comment + ")";
+    }
+}
+
+class PlaceBomb extends Action {
+    private boolean bombPlaced = false;
+    private Position targetPosition;
+    private Boomer player;
+
+    PlaceBomb(Position targetPosition, Boomer player) {
+        this.player = player;
+        this.targetPosition = targetPosition;
+    }
+
+    @Override
+    void execute(PrintStream out) {
+        if (player.position.equals(targetPosition)) {
+            out.println("BOMB " + targetPosition.x + " " + targetPosition.y);
+            bombPlaced = true;
+        } else {
+            out.println("MOVE " + targetPosition.x + " " + targetPosition.y);
+        }
+    }
+
+    @Override
+    boolean checkPreconditions() {
+        return !bombPlaced;
+    }
+
+    @Override
+    boolean checkPostconditions() {
+        return bombPlaced;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaceBomb " + targetPosition;
+    }
+}
+
+class PlaceBombAndGoTo extends Action {
+
+    private Position target;
+    private Boomer player;
+    private boolean done = false;
+
+    PlaceBombAndGoTo(Position target, Boomer player) {
+        this.target = target;
+        this.player = player;
+    }
+
+    @Override
+    void execute(PrintStream out) {
+        if (player.bombsAvailable > 0) {
+            out.println("BOMB " + target.x + " " + target.y);
+            done = true;
+        } else {
+            out.println("MOVE " + player.position.x + " " + player.position.y + " Wait for bomb");
+        }
+    }
+
+    @Override
+    boolean checkPreconditions() {
+        return true;
+    }
+
+    @Override
+    boolean checkPostconditions() {
+        return done;
+    }
+
+    @Override
+    public String toString() {
+        return "PlaceBombAndGoTo " + target;
+    }
+}
 
 class Planner {
     private final PriorityQueue<Action> actions = new PriorityQueue<>(10);
     private int orderCounter;
 
-    void executeNext() {
+    void executeNext(PrintStream out) {
         final List<Action> actionsToRemove = new ArrayList<>();
         for (Action action : actions) {
             if (action.checkPreconditions()) {
-                System.err.println("Execute action: " + action);
-                action.execute();
+                Log.info(() -> "Execute action: " + action);
+                action.execute(out);
                 if (action.checkPostconditions()) {
                     actionsToRemove.add(action);
-                    System.err.println("Remove action: " + action);
+                    Log.info(() -> "Remove action: " + action);
                 }
                 break;
             }
@@ -586,7 +2639,7 @@ class Planner {
         for (Action action : actions) {
             if (action.checkPostconditions()) {
                 actionsToRemove.add(action);
-                System.err.println("Remove action: " + action);
+                Log.info(() -> "Remove action: " + action);
             } else {
                 break;
             }
@@ -601,7 +2654,7 @@ class Planner {
     void add(Action action) {
         action.order = orderCounter++;
         actions.add(action);
-        System.err.println("Action added: " + action);
+        Log.info(() -> "Action added: " + action);
     }
 
     boolean isEmpty() {
@@ -618,23 +2671,687 @@ class Planner {
     }
 }
 
-class TimeCalculator {
-    private long value;
-    boolean enabled = true;
+/**
+ * Beam search over GameState: every node of the beam is expanded with all GameState.ACTIONS of the player,
+ * opponents stand still, the best children by UtilityEvaluator form the next layer.
+ * Layers are added until the depth limit or the turn deadline, the best node of the deepest layer wins.
+ * Children reaching a state already in the layer are dropped, evaluations are cached across turns.
+ * Enabled by -Dhypersonic.planner=beam, -Dhypersonic.beamWidth and -Dhypersonic.depth tune it.
+ */
+class BeamSearchPlanner {
+    static final boolean ENABLED = System.getProperty("hypersonic.planner", "greedy").equalsIgnoreCase("beam");
+
+    private final int beamWidth = Integer.getInteger("hypersonic.beamWidth", 40);
+    private final int maxDepth = Integer.getInteger("hypersonic.depth", 12);
+
+    private final UtilityEvaluator evaluator;
+    private final GameState[] beam;
+    private final GameState[] children;
+    private final GameState replay;
+    private int[][] sequences;
+    private int[][] childSequences;
+    private final int[] childParents;
+    private final int[] childActions;
+    private final long[] ranking;
+    private final long[] beamHashes;
+    private final int[] actions = new int[GameState.MAX_PLAYERS];
+
+    final int[] bestSequence;
+    int bestLength;
+    int bestScore;
+    long expandedNodes;
+
+    BeamSearchPlanner(GridTopology topology) {
+        final int size = topology.width * topology.height;
+        final int childCapacity = beamWidth * GameState.ACTIONS.length;
+        evaluator = new UtilityEvaluator(size, new TranspositionTable(Integer.getInteger("hypersonic.ttBits", 16)));
+        beam = new GameState[beamWidth];
+        for (int i = 0; i < beamWidth; ++i) {
+            beam[i] = new GameState(topology);
+        }
+        children = new GameState[childCapacity];
+        for (int i = 0; i < childCapacity; ++i) {
+            children[i] = new GameState(topology);
+        }
+        replay = new GameState(topology);
+        sequences = new int[beamWidth][maxDepth];
+        childSequences = new int[beamWidth][maxDepth];
+        childParents = new int[childCapacity];
+        childActions = new int[childCapacity];
+        ranking = new long[childCapacity];
+        beamHashes = new long[beamWidth];
+        bestSequence = new int[maxDepth];
+    }
+
+    /**
+     * @return reached depth, the plan is in bestSequence[0, bestLength)
+     */
+    int search(GameState root, int player, TurnDeadline deadline) {
+        beam[0].copyFrom(root);
+        int beamSize = 1;
+        bestLength = 0;
+        bestScore = UtilityEvaluator.DEATH;
+        expandedNodes = 0;
+        evaluator.cache.nextGeneration();
+        int depth = 0;
+        while (depth < maxDepth && (depth == 0 || !deadline.expired())) {
+            int childCount = 0;
+            for (int parent = 0; parent < beamSize; ++parent) {
+                final GameState parentState = beam[parent];
+                final int cell = parentState.playerCells[player];
+                for (final int action : GameState.ACTIONS) {
+                    // skip actions that end up the same as another one
+                    if ((action & GameState.BOMB) != 0 && !parentState.canPlaceBomb(player)) {
+                        continue;
+                    }
+                    if ((action & ~GameState.BOMB) != GameState.STAY
+                            && parentState.moveTarget(cell, action & ~GameState.BOMB) == cell) {
+                        continue;
+                    }
+                    final GameState child = children[childCount];
+                    child.copyFrom(parentState);
+                    actions[player] = action;
+                    child.step(actions);
+                    ++expandedNodes;
+                    final int score = evaluator.evaluate(child, player);
+                    if (score == UtilityEvaluator.DEATH) {
+                        continue;
+                    }
+                    childParents[childCount] = parent;
+                    childActions[childCount] = action;
+                    // best score first, then the earliest child
+                    ranking[childCount] = -(((long) score << 32) | (Integer.MAX_VALUE - childCount));
+                    ++childCount;
+                }
+            }
+            if (childCount == 0) {
+                break; // every line dies here, keep the longest survival
+            }
+            Arrays.sort(ranking, 0, childCount);
+            beamSize = 0;
+            for (int rank = 0; rank < childCount && beamSize < beamWidth; ++rank) {
+                final int child = Integer.MAX_VALUE - (int) -ranking[rank];
+                if (isInBeam(children[child].hash, beamSize)) {
+                    continue; // the same state by another move order, this one scored lower
+                }
+                beamHashes[beamSize] = children[child].hash;
+                beam[beamSize].copyFrom(children[child]);
+                System.arraycopy(sequences[childParents[child]], 0, childSequences[beamSize], 0, depth);
+                childSequences[beamSize][depth] = childActions[child];
+                ++beamSize;
+            }
+            final int[][] swap = sequences;
+            sequences = childSequences;
+            childSequences = swap;
+            ++depth;
+            bestLength = depth;
+            bestScore = (int) (-ranking[0] >> 32);
+            System.arraycopy(sequences[0], 0, bestSequence, 0, depth);
+        }
+        actions[player] = GameState.STAY;
+        return depth;
+    }
+
+    long cacheHits() {
+        return evaluator.cache.hits;
+    }
+
+    long cacheMisses() {
+        return evaluator.cache.misses;
+    }
+
+    private boolean isInBeam(long hash, int beamSize) {
+        for (int i = 0; i < beamSize; ++i) {
+            if (beamHashes[i] == hash) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the plan with the found sequence. Bomb placement goes first in a turn, so a bomb
+     * with a move becomes PlaceBombAndGoTo to the cell the move ends in.
+     */
+    void feed(GameState root, int player, World world, Planner planner) {
+        planner.clear();
+        replay.copyFrom(root);
+        for (int i = 0; i < bestLength; ++i) {
+            final int action = bestSequence[i];
+            final int before = replay.playerCells[player];
+            actions[player] = action;
+            replay.step(actions);
+            final int after = replay.playerCells[player];
+            if (after == GameState.NO_CELL) {
+                break;
+            }
+            final Position target = world.grid.asList.get(after).position;
+            if ((action & GameState.BOMB) != 0) {
+                planner.add(new PlaceBombAndGoTo(target, world.player));
+            } else if (after != before) {
+                planner.add(new Move(target, world.player));
+            } else {
+                planner.add(new SkipTurn(world.player, "Wait"));
+            }
+        }
+        actions[player] = GameState.STAY;
+    }
+}
+
+/**
+ * Persistent fork-join pool for the candidate evaluations. Every worker thread owns a MapArena,
+ * so parallel simulations share only the read-only state of the turn.
+ * The size is set by -Dhypersonic.threads, with 1 (the default) there is no pool at all
+ * and everything runs on the game thread.
+ */
+class SearchWorkers {
+    static final int THREADS = Integer.getInteger("hypersonic.threads", 1);
+
+    private final ForkJoinPool pool;
+
+    SearchWorkers(GridTopology topology) {
+        pool = new ForkJoinPool(THREADS, p -> new Worker(p, new MapArena(topology)), null, false);
+    }
+
+    /**
+     * @return arena of the current worker, or the given one if called outside the pool
+     */
+    static MapArena arena(MapArena callerArena) {
+        final Thread thread = Thread.currentThread();
+        return thread instanceof Worker ? ((Worker) thread).arena : callerArena;
+    }
+
+    /**
+     * Runs task for every index in [0, count) and waits for all of them.
+     */
+    void forEach(int count, IntConsumer task) {
+        if (count > 0) {
+            pool.invoke(new Range(0, count, task));
+        }
+    }
+
+    private static class Range extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final IntConsumer task;
+
+        Range(int from, int to, IntConsumer task) {
+            this.from = from;
+            this.to = to;
+            this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                task.accept(from);
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new Range(from, middle, task), new Range(middle, to, task));
+        }
+    }
+
+    private static class Worker extends ForkJoinWorkerThread {
+        final MapArena arena;
+
+        Worker(ForkJoinPool pool, MapArena arena) {
+            super(pool);
+            this.arena = arena;
+        }
+    }
+}
+
+/**
+ * Diagnostics on stderr. The level is picked at startup with -Dhypersonic.log=off|info|debug, off by default
+ * so a match pays for no formatting: info shows decisions and actions, debug adds the per-candidate checks
+ * and the full map dumps.
+ * Messages are collected in one buffer and written once per turn by flush().
+ */
+class Log {
+    static final boolean INFO;
+    static final boolean DEBUG;
+
+    static {
+        final String level = System.getProperty("hypersonic.log", "off");
+        DEBUG = level.equalsIgnoreCase("debug");
+        INFO = DEBUG || level.equalsIgnoreCase("info");
+    }
+
+    private static final StringBuilder buffer = new StringBuilder(1 << 12);
+
+    static void info(String message) {
+        if (INFO) {
+            buffer.append(message).append('\n');
+        }
+    }
+
+    static void info(Supplier<String> message) {
+        if (INFO) {
+            buffer.append(message.get()).append('\n');
+        }
+    }
+
+    static void debug(String message) {
+        if (DEBUG) {
+            buffer.append(message).append('\n');
+        }
+    }
+
+    static void debug(Supplier<String> message) {
+        if (DEBUG) {
+            buffer.append(message.get()).append('\n');
+        }
+    }
+
+    static void flush() {
+        if (buffer.length() > 0) {
+            System.err.print(buffer);
+            System.err.flush();
+            buffer.setLength(0);
+        }
+    }
+}
+
+/**
+ * Time limit of a turn. Starts when the first input line of the turn arrives and expires
+ * a safety margin before the referee budget, the margin is set by -Dhypersonic.margin in ms.
+ */
+class TurnDeadline {
+    static final long FIRST_TURN_BUDGET_NS = 1000000000L;
+    static final long TURN_BUDGET_NS = 100000000L;
+    static final long MARGIN_NS = Long.getLong("hypersonic.margin", 20) * 1000000L;
+
+    private long expiresAt;
+
+    static long budget(boolean firstTurn) {
+        return firstTurn ? FIRST_TURN_BUDGET_NS : TURN_BUDGET_NS;
+    }
+
+    void start(boolean firstTurn) {
+        expiresAt = System.nanoTime() + budget(firstTurn) - MARGIN_NS;
+    }
+
+    boolean expired() {
+        return System.nanoTime() - expiresAt >= 0;
+    }
+}
+
+/**
+ * Turn profiler with nested phases: begin(name) opens a phase inside the current one, end() closes it.
+ * A phase is identified by its name and its parent, so the path search of the turn and the one of a retreat
+ * simulation are reported separately. Samples go to histograms, which give p50/p99/max over the whole match.
+ * Turns longer than the referee limit (1000 ms for the first turn, 100 ms after it) are counted as overruns.
+ */
+class Profiler {
+    private static final int MAX_DEPTH = 16;
+
+    private final Thread owner = Thread.currentThread(); // scopes opened by search workers are ignored
+
+    private final Phase root = new Phase("turn");
+    private final Phase[] stack = new Phase[MAX_DEPTH];
+    private final long[] startTimes = new long[MAX_DEPTH];
+    private int depth;
+    private int turnCount;
+    private int budgetOverruns;
+
+    void startTurn() {
+        stack[0] = root;
+        startTimes[0] = System.nanoTime();
+        depth = 1;
+    }
+
+    void endTurn() {
+        final long time = System.nanoTime() - startTimes[0];
+        root.histogram.record(time);
+        if (time > TurnDeadline.budget(turnCount == 0)) {
+            ++budgetOverruns;
+        }
+        ++turnCount;
+        depth = 0;
+    }
+
+    void begin(String name) {
+        if (Thread.currentThread() != owner) {
+            return;
+        }
+        stack[depth] = stack[depth - 1].child(name);
+        startTimes[depth++] = System.nanoTime();
+    }
+
+    void end() {
+        if (Thread.currentThread() != owner) {
+            return;
+        }
+        --depth;
+        stack[depth].histogram.record(System.nanoTime() - startTimes[depth]);
+    }
+
+    String summary() {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("Profile of ").append(turnCount).append(" turns, budget overruns: ").append(budgetOverruns).append("\n");
+        sb.append(String.format("%-32s %7s %9s %9s %9s %11s%n", "phase", "count", "p50 ms", "p99 ms", "max ms", "total ms"));
+        appendPhase(sb, root, 0);
+        return sb.toString();
+    }
+
+    private void appendPhase(StringBuilder sb, Phase phase, int level) {
+        final Histogram h = phase.histogram;
+        final StringBuilder name = new StringBuilder();
+        for (int i = 0; i < level; ++i) {
+            name.append("  ");
+        }
+        name.append(phase.name);
+        sb.append(String.format(
+                "%-32s %7d %9.3f %9.3f %9.3f %11.3f%n",
+                name,
+                h.count,
+                h.percentile(0.5) / 1e6,
+                h.percentile(0.99) / 1e6,
+                h.max / 1e6,
+                h.total / 1e6
+        ));
+        for (final Phase child : phase.children) {
+            appendPhase(sb, child, level + 1);
+        }
+    }
+
+    private static class Phase {
+        final String name;
+        final Histogram histogram = new Histogram();
+        final List<Phase> children = new ArrayList<>(4);
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        Phase child(String name) {
+            for (int i = 0; i < children.size(); ++i) {
+                final Phase child = children.get(i);
+                if (child.name.equals(name)) {
+                    return child;
+                }
+            }
+            final Phase child = new Phase(name);
+            children.add(child);
+            return child;
+        }
+    }
+}
+
+/**
+ * Histogram of durations with about 1.5% resolution: exact microsecond buckets up to 128 us,
+ * 64 buckets per power of two above that.
+ */
+class Histogram {
+    private static final int LINEAR_BUCKETS = 128;
+    private static final int SUB_BUCKET_BITS = 6;
+
+    private final long[] counts = new long[LINEAR_BUCKETS + (64 - 7) * (1 << SUB_BUCKET_BITS)];
+    long count;
+    long total;
+    long max;
+
+    void record(long nanos) {
+        ++counts[bucket(nanos / 1000)];
+        ++count;
+        total += nanos;
+        max = Math.max(max, nanos);
+    }
+
+    /**
+     * @return lower bound of the bucket holding the given quantile, in nanoseconds
+     */
+    long percentile(double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length; ++bucket) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return Math.min(max, lowerBound(bucket) * 1000);
+            }
+        }
+        return max;
+    }
+
+    private static int bucket(long micros) {
+        if (micros < LINEAR_BUCKETS) {
+            return (int) micros;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        final int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+        return LINEAR_BUCKETS + ((exponent - 7) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+        final int exponent = ((bucket - LINEAR_BUCKETS) >>> SUB_BUCKET_BITS) + 7;
+        final int subBucket = (bucket - LINEAR_BUCKETS) & ((1 << SUB_BUCKET_BITS) - 1);
+        return ((long) ((1 << SUB_BUCKET_BITS) + subBucket)) << (exponent - SUB_BUCKET_BITS);
+    }
+}
+
+/**
+ * Replacement of Scanner for the referee protocol. Reads the stream through its own buffer
+ * and parses ints and grid rows in place, without creating strings.
+ */
+class InputReader {
+    private final InputStream stream;
+    private final byte[] buffer = new byte[1 << 16];
+    private int length;
+    private int position;
+    private ByteArrayOutputStream capture; // null if not capturing
+    private int captureFrom;
+
+    InputReader(InputStream stream) {
+        this.stream = stream;
+    }
+
+    /**
+     * Copies the raw bytes consumed from now on to sink, until endCapture().
+     */
+    void startCapture(ByteArrayOutputStream sink) {
+        capture = sink;
+        captureFrom = position;
+    }
+
+    void endCapture() {
+        capture.write(buffer, captureFrom, position - captureFrom);
+        capture = null;
+    }
+
+    /**
+     * Blocks until the next line arrives.
+     *
+     * @return false if the input is over
+     */
+    boolean hasNext() {
+        while (true) {
+            if (position == length && !fill()) {
+                return false;
+            }
+            if (buffer[position] > ' ') {
+                return true;
+            }
+            ++position;
+        }
+    }
+
+    int readInt() {
+        int c = read();
+        while (c <= ' ') {
+            c = read();
+        }
+        final boolean negative = c == '-';
+        if (negative) {
+            c = read();
+        }
+        int value = c - '0';
+        for (int next = peek(); next >= '0' && next <= '9'; next = peek()) {
+            value = value * 10 + (next - '0');
+            ++position;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Reads the rest of the current line into row, the line break is consumed but not stored.
+     *
+     * @return number of bytes stored
+     */
+    int readRow(byte[] row) {
+        int count = 0;
+        int c = read();
+        while (c != '\n') {
+            if (c != '\r' && count < row.length) {
+                row[count++] = (byte) c;
+            }
+            if (position == length && !fill()) {
+                break; // last line without line break
+            }
+            c = buffer[position++];
+        }
+        return count;
+    }
+
+    void skipLine() {
+        int c = read();
+        while (c != '\n') {
+            if (position == length && !fill()) {
+                break;
+            }
+            c = buffer[position++];
+        }
+    }
+
+    private int read() {
+        if (position == length && !fill()) {
+            throw new NoSuchElementException("End of input");
+        }
+        return buffer[position++];
+    }
+
+    private int peek() {
+        if (position == length && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private boolean fill() {
+        if (capture != null) {
+            capture.write(buffer, captureFrom, length - captureFrom);
+            captureFrom = 0;
+        }
+        try {
+            length = stream.read(buffer, 0, buffer.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        position = 0;
+        if (length <= 0) {
+            length = 0;
+            return false;
+        }
+        return true;
+    }
+}
+
+/**
+ * Match log for offline replays, written with -Dhypersonic.record=file: the raw init line, then per turn
+ * the raw frame, the answer and the turn time in nanoseconds. Gzipped DataOutput records, each turn flushed,
+ * read back by tools/Replay.
+ */
+class TurnLog implements AutoCloseable {
+    static final String FILE = System.getProperty("hypersonic.record");
+    static final int MAGIC = 0x48595052; // "HYPR"
+    static final int VERSION = 1;
+
+    final ByteArrayOutputStream input = new ByteArrayOutputStream(1 << 10);
+    final ByteArrayOutputStream answer = new ByteArrayOutputStream(64);
+    private final DataOutputStream out;
+
+    TurnLog(OutputStream stream) {
+        try {
+            out = new DataOutputStream(new GZIPOutputStream(stream, 1 << 12, true));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static TurnLog create(String file) {
+        try {
+            return new TurnLog(new FileOutputStream(file));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return output that also goes to answer
+     */
+    PrintStream tee(PrintStream output) {
+        return new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                output.write(b);
+                answer.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                output.write(b, off, len);
+                answer.write(b, off, len);
+            }
+
+            @Override
+            public void flush() {
+                output.flush();
+            }
+        }, true);
+    }
+
+    void writeInit() {
+        try {
+            writeBytes(input);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-    void start() {
-        value = System.nanoTime();
+    void writeTurn(long nanos) {
+        try {
+            writeBytes(input);
+            writeBytes(answer);
+            out.writeLong(nanos);
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
-    double getTime_ms() {
-        double ms = (System.nanoTime() - value) / 1000000.0;
-        value = System.nanoTime();
-        return ms;
+    private void writeBytes(ByteArrayOutputStream bytes) throws IOException {
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+        bytes.reset();
     }
 
-    void showTime(String prefix) {
-        if (enabled) {
-            System.err.println(prefix + ": " + getTime_ms() + " ms");
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 }
@@ -642,267 +3359,336 @@ class TimeCalculator {
 // main class must be Player
 class Player {
 
-    private final Scanner in = new Scanner(System.in);
-    private final World world = new World();
+    private final InputReader in;
+    private PrintStream out;
+    private TurnLog turnLog; // null unless recording
+    // package-private for the tools
+    final World world = new World();
     private final Planner planner = new Planner();
+    final Profiler profiler = new Profiler();
+    final TurnDeadline deadline = new TurnDeadline();
+    private GameState gameState;
+    private BeamSearchPlanner searchPlanner;
+    private boolean firstTurn = true;
+    static final int RETREAT_FAILS = -1; // safe cell count of evaluateRetreat() when the candidate is hit
+    // retreats memo: a cell index, or one of these
+    static final int RETREAT_UNKNOWN = -2;
+    static final int NO_RETREAT = -3;
+    // pair result of findCellsToRetreat() not evaluated: the deadline passed and the target had a retreat
+    static final int RETREAT_SKIPPED = -4;
+    // safe cells that make a retreat good enough, the first candidate to reach it wins
+    static final int ESCAPE_LIMIT = Integer.getInteger("hypersonic.escapeLimit", 16);
+    // utility points a plan loses when its retreat has no safe cell, less as the safe cells reach ESCAPE_LIMIT
+    static final int RETREAT_RISK = Integer.getInteger("hypersonic.retreatRisk", 2);
+
+    MapArena arena;
+    private SearchWorkers workers; // null if single-threaded
+    private ExplosionEngine explosionEngine;
+    private ThreatLayer threatLayer;
+    FootprintCache footprints;
+    final IntUnaryOperator utilities = this::utilityAt; // one instance, extract() runs every turn
+    private byte[] rowBuffer;
+
+    Player() {
+        this(System.in, System.out);
+    }
+
+    Player(InputStream input, PrintStream output) {
+        in = new InputReader(input);
+        out = output;
+    }
 
     public static void main(String args[]) {
         final Player game = new Player();
+        if (TurnLog.FILE != null) {
+            game.record(TurnLog.create(TurnLog.FILE));
+        }
         game.initWorld();
         game.run();
+        if (game.turnLog != null) {
+            game.turnLog.close();
+        }
+        Log.info(() -> game.profiler.summary());
+        Log.flush();
+    }
+
+    /**
+     * Logs the input and the answers of the match from now on, call it before initWorld().
+     */
+    void record(TurnLog log) {
+        turnLog = log;
+        out = log.tee(out);
     }
 
     void run() {
         // game loop
-        final TimeCalculator timeCalculator = new TimeCalculator();
-        timeCalculator.enabled = false;
-        while (true) {
-            timeCalculator.start();
-
-            final TypeMap typeMap = TypeMap.createTypeMap(world.grid.width, world.grid.height);
-            final IntegerMap utilityMap = IntegerMap.createUtilityMap(world.grid.width, world.grid.height);
-            final PathMap pathMap = PathMap.createPathMap(world.grid.width, world.grid.height);
-            final IntegerMap explosionMap = IntegerMap.createExplosionMap(world.grid.width, world.grid.height);
-            final IntegerMap safetyMap = IntegerMap.createSafetyMap(world.grid.width, world.grid.height);
-            timeCalculator.showTime("Maps allocation");
+        while (in.hasNext()) {
+            playTurn();
+        }
+    }
 
-            updateWorldState(typeMap);
-            timeCalculator.showTime("Update world");
+    /**
+     * Reads one frame and answers it, the input must have it.
+     */
+    void playTurn() {
+        final long startTime = System.nanoTime();
+        deadline.start(firstTurn);
+        firstTurn = false;
+        profiler.startTurn();
+
+        if (turnLog != null) {
+            in.startCapture(turnLog.input);
+        }
+        readTurn();
+        if (turnLog != null) {
+            in.endCapture();
+        }
+        final TypeMap typeMap = arena.typeMap;
+        final IntegerMap utilityMap = arena.utilityMap;
+        final PathMap pathMap = arena.pathMap;
+        final IntegerMap explosionMap = arena.explosionMap;
+        final IntegerMap safetyMap = arena.safetyMap;
+
+        if (world.changed || world.playersBombCountChanged) {
+            Log.info("Something changed, clear queue");
+            planner.clear();
+        } else {
+            planner.clearFinished();
+        }
 
-            System.err.println("Player position: " + world.player.position);
+        updateExplosionMap();
+        final BitBoard willBeDestroyedObjects = arena.willBeDestroyedObjects;
 
-            updateObjectCounters(typeMap);
-            timeCalculator.showTime("World counters");
+        profiler.begin("threat layer");
+        threatLayer.update(world, typeMap);
+        profiler.end();
 
-            in.nextLine();
+        calculatePathsAndSafetyMap(
+                world.player.position,
+                typeMap,
+                explosionMap,
+                pathMap,
+                safetyMap,
+                arena
+        );
+        footprints.update(typeMap, willBeDestroyedObjects, world.player.explosionRange);
 
-            if (world.changed || world.playersBombCountChanged) {
-                System.err.println("Something changed, clear queue");
-                planner.clear();
-            } else {
-                planner.clearFinished();
+        if (Log.DEBUG) {
+            for (int i = 0; i < arena.visitCount; ++i) {
+                utilityAt(arena.visitOrder[i]);
             }
+            Log.debug("Original");
+            Log.debug(world.grid.showUtility(utilityMap));
+            Log.debug(world.grid.showDistanceFromPlayer(pathMap));
+            Log.debug(world.grid.showExplosionMap(explosionMap, typeMap));
+            Log.debug(world.grid.showSafetyMap(safetyMap));
+            Log.debug(world.grid.showThreat(threatLayer.threat));
+        }
 
-            calculateExplosionMap(world.allBombs, typeMap, explosionMap);
-            timeCalculator.showTime("Explosion map");
-
-            final Set<Cell> willBeDestroyedObjects = new HashSet<>();
-            willBeDestroyedObjects.addAll(
-                    world.grid.asList
-                            .stream()
-                            .filter(c -> Cell.DESTROYABLE_OBJECTS.contains(typeMap.at(c.position).value))
-                            .filter(c -> explosionMap.at(c.position).value >= Bomb.ALREADY_EXPLODED)
-                            .collect(Collectors.toSet())
-            );
-            timeCalculator.showTime("Model destroyed objects");
-
-            calculateCellsUtilityAndPathsAndSafetyMap(
-                    world.player.position,
-                    willBeDestroyedObjects,
-                    typeMap,
-                    explosionMap,
-                    utilityMap,
-                    pathMap,
-                    safetyMap
-            );
-            timeCalculator.showTime("Utility, paths and safety");
-
-            System.err.println("Original");
-            System.err.println(world.grid.showUtility(utilityMap));
-            System.err.println(world.grid.showDistanceFromPlayer(pathMap));
-            System.err.println(world.grid.showExplosionMap(explosionMap, typeMap));
-            System.err.println(world.grid.showSafetyMap(safetyMap));
-
-//            final boolean ignoreZeroUtility = world.boxCount > 10;
-            final boolean ignoreZeroUtility = true;
-//            if (!ignoreZeroUtility) {
-//                System.err.println("Too few boxes, target enemies");
-//                calculateUtilityForEnemies(world.enemies.values(), world.player.explosionRange, typeMap, utilityMap);
-//            }
+//        final boolean ignoreZeroUtility = world.boxCount > 10;
+        final boolean ignoreZeroUtility = true;
+//        if (!ignoreZeroUtility) {
+//            System.err.println("Too few boxes, target enemies");
+//            calculateUtilityForEnemies(world.players, world.player.explosionRange, typeMap, utilityMap);
+//        }
 
-            if (planner.isEmpty()) {
-                int modelIterationCount = 5;
-                while (modelIterationCount-- > 0) {
-                    Cell targetCell = null;
-                    int initialScanRange;
-                    if (world.player.bombsAvailable == 0) {
-                        initialScanRange = 8;
-                    } else if (world.player.bombsAvailable == 1) {
-                        initialScanRange = 4;
-                    } else {
-                        initialScanRange = 2;
-                    }
+        if (BeamSearchPlanner.ENABLED) {
+            profiler.begin("beam search");
+            gameState.load(world, typeMap);
+            final int depth = searchPlanner.search(gameState, world.player.id, deadline);
+            Log.info(() -> "Beam search: depth " + depth
+                    + ", nodes " + searchPlanner.expandedNodes
+                    + ", score " + searchPlanner.bestScore
+                    + ", cache hits " + searchPlanner.cacheHits() + "/" + (searchPlanner.cacheHits() + searchPlanner.cacheMisses()));
+            searchPlanner.feed(gameState, world.player.id, world, planner);
+            profiler.end();
+        }
 
-                    targetCell = findTarget(initialScanRange, 5, ignoreZeroUtility, utilityMap, pathMap);
-                    System.err.println("Target cell: " + targetCell);
-                    if (targetCell != null) {
-//                        if (Cell.BONUS_SUBTYPES.contains(typeMap.at(targetCell.position).value)) {
-//                            final List<Cell> path = getPathTo(targetCell, pathMap);
-//                            path.forEach(c -> planner.add(new Move(c.position, world.player)));
-//                        } else {
-                        final Cell cellToRetreat = findCellToRetreat(targetCell, typeMap, pathMap);
-                        System.err.println("Cell to retreat: " + cellToRetreat);
-                        if (cellToRetreat != null) {
-                            final List<Cell> path = getPathTo(targetCell, pathMap);
-                            path.forEach(c -> planner.add(new Move(c.position, world.player)));
-                            planner.add(new PlaceBombAndGoTo(cellToRetreat.position, world.player));
-                            break;
-                        } else {
-                            utilityMap.at(targetCell.position).value = 0;
-                        }
-//                        }
-                    } else {
-                        // go to safety point
-                        System.err.println("No target found, go to safety point");
-                        final Cell nearestSafetyPoint = findNearestSafetyPoint(safetyMap, pathMap);
-                        System.err.println("Nearest safety point: " + nearestSafetyPoint);
-                        if (nearestSafetyPoint != null) {
-                            final List<Cell> path = getPathTo(nearestSafetyPoint, pathMap);
-                            if (path.isEmpty()) {
-                                System.err.println("Already in safe");
-                                planner.add(new SkipTurn(world.player, "Wait in safety"));
-                            } else {
-                                path.forEach(c -> planner.add(new Move(c.position, world.player)));
-                            }
-                        } else {
-                            planner.add(new SkipTurn(world.player, "Seems i die soon"));
-                        }
-                        break;
-                    }
-                }
+        profiler.begin("target search");
+        if (planner.isEmpty()) {
+            int initialScanRange;
+            if (world.player.bombsAvailable == 0) {
+                initialScanRange = 8;
+            } else if (world.player.bombsAvailable == 1) {
+                initialScanRange = 4;
+            } else {
+                initialScanRange = 2;
+            }
+            if (workers == null) {
+                findTargetAndRetreat(initialScanRange, ignoreZeroUtility, typeMap, utilityMap, pathMap, safetyMap);
+            } else {
+                findTargetAndRetreatInParallel(initialScanRange, ignoreZeroUtility, typeMap, utilityMap, pathMap, safetyMap);
             }
             if (planner.isEmpty()) {
-                planner.add(new SkipTurn(world.player, "wtf"));
+                Log.info("Deadline reached, go to safety point");
+                planGoToSafetyPoint(safetyMap, pathMap);
             }
-            timeCalculator.showTime("Target search");
+        }
+        if (planner.isEmpty()) {
+            planner.add(new SkipTurn(world.player, "wtf"));
+        }
+        profiler.end();
 
+        if (!BeamSearchPlanner.ENABLED || searchPlanner.bestLength == 0) {
+            profiler.begin("dodge");
             checkExplosionsAndDodge(world.player.position, typeMap, pathMap, safetyMap);
-            timeCalculator.showTime("Check explosions and dodge");
+            profiler.end();
+        }
+
+        if (Log.DEBUG) {
+            Log.debug("Final");
+            Log.debug(world.grid.showUtility(utilityMap));
+//            Log.debug(world.grid.showDistanceFromPlayer(pathMap));
+//            Log.debug(world.grid.showExplosionMap(explosionMap, typeMap));
+//            Log.debug(world.grid.showSafetyMap(safetyMap));
+            Log.debug(planner.toString());
+        }
+
+        planner.executeNext(out);
+        if (turnLog != null) {
+            turnLog.writeTurn(System.nanoTime() - startTime);
+        }
+        profiler.endTurn();
+        Log.flush();
+    }
+
+    /**
+     * Resets the turn maps and parses the next frame into them.
+     */
+    void readTurn() {
+        profiler.begin("maps reset");
+        arena.resetTurnMaps();
+        profiler.end();
+
+        profiler.begin("update world");
+        updateWorldState(arena.typeMap);
+        Log.info(() -> "Player position: " + world.player.position);
+        updateObjectCounters(arena.typeMap);
+        in.skipLine();
+        profiler.end();
+    }
 
-            System.err.println("Final");
-            System.err.println(world.grid.showUtility(utilityMap));
-//            System.err.println(world.grid.showDistanceFromPlayer(pathMap));
-//            System.err.println(world.grid.showExplosionMap(explosionMap, typeMap));
-//            System.err.println(world.grid.showSafetyMap(safetyMap));
-            System.err.println(planner);
+    /**
+     * Explosion map and objects to be destroyed of the frame read by readTurn().
+     */
+    void updateExplosionMap() {
+        profiler.begin("explosion map");
+        explosionEngine.update(world.bombs, arena.typeMap, arena.explosionMap, arena.explosionArea);
+        arena.willBeDestroyedObjects.copyFrom(arena.typeMap.destroyable);
+        arena.willBeDestroyedObjects.and(arena.explosionArea);
+        profiler.end();
+    }
 
-            planner.executeNext();
+    void planGoToSafetyPoint(final IntegerMap safetyMap, final PathMap pathMap) {
+        final Cell nearestSafetyPoint = findNearestSafetyPoint(safetyMap, pathMap);
+        Log.info(() -> "Nearest safety point: " + nearestSafetyPoint);
+        if (nearestSafetyPoint != null) {
+            final List<Cell> path = getPathTo(nearestSafetyPoint, pathMap);
+            if (path.isEmpty()) {
+                Log.info("Already in safe");
+                planner.add(new SkipTurn(world.player, "Wait in safety"));
+            } else {
+                path.forEach(c -> planner.add(new Move(c.position, world.player)));
+            }
+        } else {
+            planner.add(new SkipTurn(world.player, "Seems i die soon"));
         }
     }
 
     void initWorld() {
-        world.grid.width = in.nextInt();
-        world.grid.height = in.nextInt();
-        world.grid.clear();
-        world.player.id = in.nextInt();
-        in.nextLine();
+        if (turnLog != null) {
+            in.startCapture(turnLog.input);
+        }
+        world.grid.width = in.readInt();
+        world.grid.height = in.readInt();
+        world.grid.init();
+        arena = new MapArena(world.grid.topology);
+        if (SearchWorkers.THREADS > 1) {
+            workers = new SearchWorkers(world.grid.topology);
+        }
+        explosionEngine = new ExplosionEngine(world.grid.topology);
+        threatLayer = new ThreatLayer(world.grid.topology);
+        footprints = new FootprintCache(world.grid.topology);
+        if (BeamSearchPlanner.ENABLED) {
+            gameState = new GameState(world.grid.topology);
+            searchPlanner = new BeamSearchPlanner(world.grid.topology);
+        }
+        world.init(in.readInt());
+        in.skipLine();
+        if (turnLog != null) {
+            in.endCapture();
+            turnLog.writeInit();
+        }
+        rowBuffer = new byte[world.grid.width];
     }
 
     void updateWorldState(final TypeMap typeMap) {
-        world.playerBombs.clear();
-        world.enemyBombs.clear();
-        world.allBombs.clear();
-        world.grid.clear();
+        final BombStore bombs = world.bombs;
+        bombs.clear();
         for (int rowIndex = 0; rowIndex < world.grid.height; rowIndex++) {
-            final String row = in.nextLine();
+            in.readRow(rowBuffer);
             for (int columnIndex = 0; columnIndex < world.grid.width; ++columnIndex) {
-                final Cell cell = new Cell();
-                cell.position = new Position(columnIndex, rowIndex);
-                final char typeSymbol = row.charAt(columnIndex);
-                final TypeParameter typeParameter = typeMap.values[columnIndex][rowIndex];
+                final byte typeSymbol = rowBuffer[columnIndex];
                 if (typeSymbol == Cell.Type.Box.symbol) {
-                    typeParameter.value = Cell.Type.Box;
+                    typeMap.set(columnIndex, rowIndex, Cell.Type.Box);
                 } else if (typeSymbol == Cell.Type.BoxWithExtraRange.symbol) {
-                    typeParameter.value = Cell.Type.BoxWithExtraRange;
+                    typeMap.set(columnIndex, rowIndex, Cell.Type.BoxWithExtraRange);
                 } else if (typeSymbol == Cell.Type.BoxWithExtraBomb.symbol) {
-                    typeParameter.value = Cell.Type.BoxWithExtraBomb;
+                    typeMap.set(columnIndex, rowIndex, Cell.Type.BoxWithExtraBomb);
                 } else if (typeSymbol == Cell.Type.Wall.symbol) {
-                    typeParameter.value = Cell.Type.Wall;
+                    typeMap.set(columnIndex, rowIndex, Cell.Type.Wall);
                 }
-                world.grid.cells[columnIndex][rowIndex] = cell;
-                world.grid.asList.add(cell);
             }
         }
-        int entities = in.nextInt();
+        for (final Boomer boomer : world.players) {
+            boomer.alive = false;
+        }
+        int entities = in.readInt();
         for (int i = 0; i < entities; i++) {
-            int entityType = in.nextInt();
-            int owner = in.nextInt();
-            int x = in.nextInt();
-            int y = in.nextInt();
-            int param1 = in.nextInt();
-            int param2 = in.nextInt();
+            int entityType = in.readInt();
+            int owner = in.readInt();
+            int x = in.readInt();
+            int y = in.readInt();
+            int param1 = in.readInt();
+            int param2 = in.readInt();
             switch (entityType) {
                 case Boomer.ENTITY_TYPE:
-                    if (owner == world.player.id) {
-                        world.player.position.x = x;
-                        world.player.position.y = y;
-                        world.playersBombCountChanged = world.player.bombsAvailable != param1;
-                        world.player.bombsAvailable = param1;
-                        world.player.explosionRange = param2;
-                    } else {
-                        if (!world.enemies.containsKey(owner)) {
-                            world.enemies.put(owner, new Boomer());
-                        }
-                        final Boomer enemy = world.enemies.get(owner);
-                        enemy.position.x = x;
-                        enemy.position.y = y;
-                        enemy.bombsAvailable = param1;
-                        enemy.explosionRange = param2;
+                    if (owner < 0 || owner >= world.players.length) {
+                        break;
                     }
+                    final Boomer boomer = world.players[owner];
+                    if (boomer == world.player) {
+                        world.playersBombCountChanged = boomer.bombsAvailable != param1;
+                    }
+                    boomer.alive = true;
+                    boomer.position.x = x;
+                    boomer.position.y = y;
+                    boomer.bombsAvailable = param1;
+                    boomer.explosionRange = param2;
                     break;
                 case Bomb.ENTITY_TYPE:
-                    final Bomb bomb = new Bomb();
-                    if (owner == world.player.id) {
-                        world.playerBombs.add(bomb);
-                    } else {
-                        world.enemyBombs.add(bomb);
-                    }
-                    bomb.position.x = x;
-                    bomb.position.y = y;
-                    bomb.timer = param1;
-                    bomb.explosionRange = param2;
+                    bombs.add(x, y, typeMap.index(x, y), param1, param2, owner);
                     break;
                 case Item.ENTITY_CODE:
-                    final Item item = new Item();
-                    item.position.x = x;
-                    item.position.y = y;
                     if (param1 == Item.Type.ExtraRange.code) {
-                        item.type = Item.Type.ExtraRange;
-                        typeMap.values[x][y].value = Cell.Type.ExtraRange;
+                        typeMap.set(x, y, Cell.Type.ExtraRange);
                     } else if (param1 == Item.Type.ExtraBomb.code) {
-                        item.type = Item.Type.ExtraBomb;
-                        typeMap.values[x][y].value = Cell.Type.ExtraBomb;
+                        typeMap.set(x, y, Cell.Type.ExtraBomb);
                     }
                     break;
                 default:
                     break;
             }
         }
-        world.allBombs.addAll(world.playerBombs);
-        world.allBombs.addAll(world.enemyBombs);
-        world.allBombs.forEach(b -> typeMap.at(b.position).value = Cell.Type.Bomb);
+        for (int i = 0; i < bombs.count; ++i) {
+            typeMap.set(bombs.cells[i], Cell.Type.Bomb);
+        }
     }
 
     void updateObjectCounters(final TypeMap typeMap) {
-        int bombCounter = 0;
-        int boxCounter = 0;
-        int bonusCounter = 0;
-        for (final Cell cell : world.grid.asList) {
-            switch (typeMap.at(cell.position).value) {
-                case Bomb:
-                    ++bombCounter;
-                    break;
-                case Box:
-                case BoxWithExtraBomb:
-                case BoxWithExtraRange:
-                    ++boxCounter;
-                    break;
-                case ExtraBomb:
-                case ExtraRange:
-                    ++bonusCounter;
-                    break;
-            }
-        }
+        final int bombCounter = typeMap.bombs.cardinality();
+        final int boxCounter = typeMap.boxes.cardinality();
+        final int bonusCounter = typeMap.bonuses.cardinality();
         world.changed = false;
         if (bombCounter != world.bombCount) {
             world.bombCount = bombCounter;
@@ -918,352 +3704,260 @@ class Player {
         }
     }
 
+    /**
+     * Utility of a cell of the turn, scored on first use after the path search and remembered for the turn.
+     */
+    int utilityAt(final int cell) {
+        if (!arena.utilityCalculated.at(cell)) {
+            calculateUtilityForCell(world.grid.asList.get(cell), arena.typeMap, arena.willBeDestroyedObjects, arena.utilityMap, arena.pathMap);
+            arena.utilityCalculated.set(cell, true);
+        }
+        return arena.utilityMap.at(cell);
+    }
+
     void calculateUtilityForCell(
             final Cell cell,
             final TypeMap typeMap,
-            final Set<Cell> willBeDestroyedObjects,
+            final BitBoard willBeDestroyedObjects,
             final IntegerMap utilityMap,
             final PathMap pathMap
     ) {
-        final IntegerParameter utility = utilityMap.at(cell.position);
-        final Cell.Type cellType = typeMap.at(cell.position).value;
-        if (Cell.PASSABLE_SUBTYPES.contains(cellType)) {
-            final Set<Cell> boxes = calculateDestroyedObjects(
-                    cell.position,
-                    world.player.explosionRange,
-                    typeMap,
-                    Cell.BOX_SUBTYPES,
-                    willBeDestroyedObjects
-            );
-            utility.value = 0;
-            boxes.forEach(c -> {
-                switch (typeMap.at(c.position).value) {
-                    case Box:
-                        utility.value += 1;
-                        break;
-                    case BoxWithExtraBomb:
-                        if (world.player.bombsAvailable + world.playerBombs.size() > 5) {
-                            utility.value += 1;
-                        } else if (world.player.bombsAvailable + world.playerBombs.size() > 3) {
-                            utility.value += 2;
-                        } else {
-                            utility.value += 3;
-                        }
-                        break;
-                    case BoxWithExtraRange:
-                        if (world.player.explosionRange > 5) {
-                            utility.value += 1;
-                        } else {
-                            utility.value += 2;
-                        }
-                        break;
-                    default:
-                        break;
-                }
-            });
+        final Cell.Type cellType = typeMap.at(cell.index);
+        int utility = utilityMap.at(cell.index);
+        if (typeMap.passable.get(cell.index)) {
+            final int bombCapacity = world.player.bombsAvailable + world.bombs.countOf(world.player.id);
+            utility = footprints.boxUtility(cell.index, typeMap, willBeDestroyedObjects, bombCapacity);
 //            final List<Position> adjacentPositions = generateAdjacentPositions(cell.position, Cell.PASSABLE_SUBTYPES, typeMap);
-//            utility.value += adjacentPositions
+//            utility += adjacentPositions
 //                    .stream()
-//                    .map(p -> typeMap.at(p).value)
+//                    .map(p -> typeMap.at(p))
 //                    .filter(t -> Cell.PASSABLE_SUBTYPES.contains(t))
 //                    .count() / 2;
         }
-        if (Cell.BONUS_SUBTYPES.contains(cellType)) {
+        if (typeMap.bonuses.get(cell.index)) {
 //            if (willBeDestroyedObjects.contains(cell)) {
-//                utility.value += 0; // danger
+//                utility += 0; // danger
 //            } else {
 //                if (cellType == Cell.Type.ExtraBomb) {
-//                    if (world.player.bombsAvailable + world.playerBombs.size() > 4) {
-//                        utility.value += 1;
-//                    } else if (world.player.bombsAvailable + world.playerBombs.size() > 2) {
-//                        utility.value += 2;
+//                    if (world.player.bombsAvailable + world.bombs.countOf(world.player.id) > 4) {
+//                        utility += 1;
+//                    } else if (world.player.bombsAvailable + world.bombs.countOf(world.player.id) > 2) {
+//                        utility += 2;
 //                    } else {
-//                        utility.value += 3;
+//                        utility += 3;
 //                    }
 //                } else {
 //                    if (world.player.explosionRange > 5) {
-//                        utility.value += 1;
+//                        utility += 1;
 //                    } else {
-//                        utility.value += 2;
+//                        utility += 2;
 //                    }
 //                }
-            utility.value += 2;
-            if (cellType == Cell.Type.ExtraBomb) {
-                utility.value += 1;
-            }
-            if (world.player.bombsAvailable == 0) {
-                utility.value += 1;
-            }
-//                final int distanceToBonus = pathMap.at(cell.position).distance;
-//                utility.value += Math.max(6 - distanceToBonus, 0);
+            utility += UtilityEvaluator.bonusValue(cellType, world.player.bombsAvailable);
+//                final int distanceToBonus = pathMap.distanceAt(cell.position);
+//                utility += Math.max(6 - distanceToBonus, 0);
 //            }
         }
-        utility.value -= pathMap.at(cell.position).distance / 2;
-        utility.value = Math.max(0, utility.value);
+        utility -= pathMap.distanceAt(cell.position) / 2;
+        utility -= threatLayer.cost(cell.index);
+        utilityMap.set(cell.position, Math.max(0, utility));
     }
 
     void calculateUtilityForEnemies(
-            final Collection<Boomer> enemies,
+            final Boomer[] players,
             final int explosionRange,
             final TypeMap typeMap,
             final IntegerMap utilityMap
     ) {
-        final List<Position> directions = new ArrayList<>(4);
-        directions.add(new Position(1, 0));
-        directions.add(new Position(-1, 0));
-        directions.add(new Position(0, 1));
-        directions.add(new Position(0, -1));
-
-        for (final Boomer enemy : enemies) {
-            directions.forEach(dir -> {
-                int explosionRadius = explosionRange - 1;
-                Position pos = enemy.position;
-                while (explosionRadius > 0) {
-                    --explosionRadius;
-                    pos = pos.add(dir);
-                    if ((pos.x < 0) || (pos.y < 0) || (pos.x >= world.grid.width) || (pos.y >= world.grid.height)) {
-                        break; // end of map
-                    }
-                    final Cell.Type cellType = typeMap.at(pos).value;
-                    if (Cell.EXPLOSION_STOPPERS.contains(cellType)) {
+        final GridTopology topology = world.grid.topology;
+        for (final Boomer enemy : players) {
+            if (enemy == world.player || !enemy.alive) {
+                continue;
+            }
+            final int enemyCell = typeMap.index(enemy.position);
+            for (int direction = 0; direction < GridTopology.DIRECTION_COUNT; ++direction) {
+                final int[] ray = topology.ray(enemyCell, direction);
+                final int length = GridTopology.rayLength(ray, explosionRange);
+                for (int step = 0; step < length; ++step) {
+                    final int cell = ray[step];
+                    if (typeMap.explosionStoppers.get(cell)) {
                         break;
                     }
-                    ++utilityMap.at(pos).value;
+                    utilityMap.set(cell, utilityMap.at(cell) + 1);
                 }
-            });
+            }
         }
     }
 
-    void calculateCellsUtilityAndPathsAndSafetyMap(
+    /**
+     * Distances, paths and safety of the cells reachable from startPosition. Utilities are not scored here,
+     * see utilityAt().
+     */
+    void calculatePathsAndSafetyMap(
             final Position startPosition,
-            final Set<Cell> willBeDestroyedObjects,
             final TypeMap typeMap,
             final IntegerMap explosionMap,
-            final IntegerMap utilityMap,
             final PathMap pathMap,
-            final IntegerMap safetyMap
+            final IntegerMap safetyMap,
+            final MapArena arena
     ) {
-        final PriorityQueue<Cell> queue = new PriorityQueue<>(
-                world.grid.width * world.grid.height,
-                (Comparator<Cell>) (o1, o2) -> pathMap.at(o1.position).distance - pathMap.at(o2.position).distance
-        );
+        profiler.begin("paths");
+        final CellQueue queue = arena.queue;
+        queue.reset(pathMap);
 //        System.err.println("===========================================");
-//        System.err.println("calculateCellsUtilityAndPathsAndSafetyMap");
+//        System.err.println("calculatePathsAndSafetyMap");
 //        System.err.println("Start: " + startPosition);
-        final BooleanMap utilityCalculated = BooleanMap.createFalseMap(world.grid.width, world.grid.height);
-        final BooleanMap pathCalculated = BooleanMap.createFalseMap(world.grid.width, world.grid.height);
-        final Cell cells[][] = world.grid.cells;
-        final Cell startCell = cells[startPosition.x][startPosition.y];
-        pathMap.at(startPosition).distance = 0;
-        safetyMap.at(startPosition).value = explosionMap.at(startPosition).value;
+        final BooleanMap pathCalculated = arena.pathCalculated;
+        arena.resetSearchFlags();
+        arena.visitCount = 0;
+        final GridTopology topology = world.grid.topology;
+        final int startCell = typeMap.index(startPosition);
+        final int[] pathThreats = arena.pathThreats;
+        pathMap.setDistance(startPosition, 0);
+        pathThreats[startCell] = 0;
+        safetyMap.set(startCell, explosionMap.at(startCell));
         queue.add(startCell);
         while (!queue.isEmpty()) {
-            final Cell currentCell = queue.poll();
-//            System.err.println("Current cell: " + currentCell);
-            final PathParameter currentPathParameter = pathMap.at(currentCell.position);
-            final BooleanParameter currentCellUtilityCalculated = utilityCalculated.at(currentCell.position);
-            if (!currentCellUtilityCalculated.value) {
-                calculateUtilityForCell(currentCell, typeMap, willBeDestroyedObjects, utilityMap, pathMap);
-//                System.err.println("Utility = " + utilityMap.at(currentCell.position).value);
-            }
-
-            currentCellUtilityCalculated.value = true;
-            pathCalculated.at(currentCell.position).value = true;
+            final int currentCell = queue.poll();
+//            System.err.println("Current cell: " + world.grid.asList.get(currentCell));
+            final int currentDistance = pathMap.distanceAt(currentCell);
+            arena.visitOrder[arena.visitCount++] = currentCell;
+            pathCalculated.set(currentCell, true);
 
             // add adjacent cells to queue
-            final List<Position> adjacentPositions = generateAdjacentPositions(currentCell.position, null, typeMap);
-//            System.err.println("Check adjacent positions");
-            adjacentPositions
-                    .forEach(p -> {
-                        final Cell adjacentCell = cells[p.x][p.y];
-//                        System.err.println("Adjacent cell: " + adjacentCell);
-                        if (pathCalculated.at(p).value) {
-//                            System.err.println("Path already calculated, ignore");
-                            return;
-                        }
-                        final PathParameter adjacentPathParameter = pathMap.at(p);
-                        final int explosionTime = explosionMap.at(p).value;
-                        if (Cell.PASSABLE_SUBTYPES.contains(typeMap.at(p).value)) {
-                            final int newDistance = currentPathParameter.distance + 1;
-//                            System.err.println("New distance = " + newDistance);
-//                            System.err.println("Explosion time = " + explosionTime);
-                            final IntegerParameter adjacentSafety = safetyMap.at(p);
-                            if ((explosionTime != Bomb.NO_EXPLOSION)
-                                    && (explosionTime - newDistance) == Bomb.ALREADY_EXPLODED) {
-                                // player will be dead if go this way, ignore it
-//                                System.err.println("Player will be dead if go this way, ignore it");
-                                adjacentSafety.value = Bomb.ALREADY_EXPLODED;
-                                return;
-                            }
-                            if (newDistance < adjacentPathParameter.distance) {
-//                                System.err.println("New distance is better than old one " + adjacentPathParameter.distance);
-                                adjacentPathParameter.distance = newDistance;
-                                adjacentPathParameter.previousCell = currentCell;
-                                if (explosionTime == Bomb.NO_EXPLOSION) {
-                                    adjacentSafety.value = Bomb.NO_EXPLOSION;
-                                } else {
-                                    adjacentSafety.value = Math.max(0, explosionTime - newDistance);
-                                }
-//                                System.err.println("New safety = " + adjacentSafety.value);
-                            } else {
-//                                System.err.println("Old distance " + adjacentPathParameter.distance + " is better than new one");
-                            }
-                            // remove and add -> force to recalculate priority
-                            if (queue.contains(adjacentCell)) { // O(n) :(
-                                queue.remove(adjacentCell); // O(n) :(
-                            }
-                            queue.add(adjacentCell);
-                        }
-//                        else {
-//                            System.err.println("Nonpassable cell, ignore");
-//                        }
-                    });
+            for (int i = 0; i < topology.neighbourCount(currentCell); ++i) {
+                final int adjacentCell = topology.neighbour(currentCell, i);
+                if (pathCalculated.at(adjacentCell)) {
+                    continue;
+                }
+                if (!typeMap.passable.get(adjacentCell)) {
+                    continue;
+                }
+                final int explosionTime = explosionMap.at(adjacentCell);
+                final int newDistance = currentDistance + 1;
+                if ((explosionTime != Bomb.NO_EXPLOSION)
+                        && (explosionTime - newDistance) == Bomb.ALREADY_EXPLODED) {
+                    // player will be dead if go this way, ignore it
+                    safetyMap.set(adjacentCell, Bomb.ALREADY_EXPLODED);
+                    continue;
+                }
+                final int newThreat = pathThreats[currentCell] + threatLayer.threat[adjacentCell];
+                if (newDistance < pathMap.distanceAt(adjacentCell)
+                        || (newDistance == pathMap.distanceAt(adjacentCell) && newThreat < pathThreats[adjacentCell])) {
+                    // of equally short routes the one less exposed to enemy bombs
+                    pathMap.set(adjacentCell, newDistance, currentCell);
+                    pathThreats[adjacentCell] = newThreat;
+                    if (explosionTime == Bomb.NO_EXPLOSION) {
+                        safetyMap.set(adjacentCell, Bomb.NO_EXPLOSION);
+                    } else {
+                        safetyMap.set(adjacentCell, Math.max(0, explosionTime - newDistance));
+                    }
+                }
+                // remove and add -> force to recalculate priority
+                if (queue.contains(adjacentCell)) {
+                    queue.remove(adjacentCell);
+                }
+                queue.add(adjacentCell);
+            }
         }
-//        System.err.println("===========================================");
-    }
-
-    void calculateExplosionMap(final List<Bomb> bombs, final TypeMap typeMap, final IntegerMap explosionMap) {
-        final Set<Cell> destroyedObjects = new HashSet<>();
-        bombs.stream()
-                .sorted((o1, o2) -> o1.timer - o2.timer)
-                .forEach(b -> calculateExplosionMapForBomb(b, destroyedObjects, typeMap, explosionMap));
+        profiler.end();
     }
 
-    void checkExplosionWaveFromBomb(
-            final Bomb bomb,
-            final Position position,
-            final IntegerMap explosionMap
+    void calculateExplosionMap(
+            final BombStore bombs,
+            final TypeMap typeMap,
+            final IntegerMap explosionMap,
+            final BitBoard explosionArea,
+            final MapArena arena
     ) {
-        final int stateAtBombPosition = explosionMap.at(bomb.position).value;
-        final int timer = (stateAtBombPosition == Bomb.NO_EXPLOSION) ? bomb.timer : stateAtBombPosition; // check for chain effect
-        final int previousValue = explosionMap.at(position).value;
-        if (previousValue == Bomb.NO_EXPLOSION || previousValue > timer) {
-            explosionMap.at(position).value = timer;
+        final int[] order = bombs.sortedByTimer();
+        for (int i = 0; i < bombs.count; ++i) {
+            final int bomb = order[i];
+            calculateExplosionMapForBomb(bombs.cells[bomb], bombs.timers[bomb], bombs.ranges[bomb], typeMap, explosionMap, explosionArea, arena);
         }
     }
 
-    Set<Cell> calculateDestroyedObjects(
-            final Position bombPosition,
-            final int explosionRange,
-            final TypeMap typeMap,
-            final EnumSet<Cell.Type> filter,
-            final Set<Cell> willBeDestroyedObjects
-    ) {
-        final int width = world.grid.width;
-        final int height = world.grid.height;
-
-        final Set<Cell> destroyedObjects = new HashSet<>(4);
-        final List<Position> directions = new ArrayList<>(4);
-        directions.add(new Position(1, 0));
-        directions.add(new Position(-1, 0));
-        directions.add(new Position(0, 1));
-        directions.add(new Position(0, -1));
-        directions.forEach(dir -> {
-            int explosionRadius = explosionRange - 1;
-            Position pos = bombPosition;
-            while (explosionRadius > 0) {
-                --explosionRadius;
-                pos = pos.add(dir);
-                if ((pos.x < 0) || (pos.y < 0) || (pos.x >= width) || (pos.y >= height)) {
-                    break; // end of map
-                }
-                final Cell cell = world.grid.cells[pos.x][pos.y];
-                final Cell.Type cellType = typeMap.at(pos).value;
-                if (filter.contains(cellType) && !willBeDestroyedObjects.contains(cell)) {
-                    destroyedObjects.add(cell);
-                }
-                if (Cell.EXPLOSION_STOPPERS.contains(cellType)) {
-                    break;
-                }
-            }
-        });
-        return destroyedObjects;
+    /**
+     * @return cells hit by a bomb at the given cell, including the cell itself.
+     * The board is scratch of the arena, valid until the next blast calculation
+     */
+    BitBoard calculateBlast(final int bombCell, final int explosionRange, final TypeMap typeMap, final MapArena arena) {
+        final BitBoard source = arena.blastSource;
+        final BitBoard blast = arena.blast;
+        source.clear();
+        source.set(bombCell);
+        blast.clear();
+        world.grid.topology.blastFill(source, explosionRange, typeMap.explosionStoppers, blast, arena.blastRay);
+        return blast;
     }
 
     void calculateExplosionMapForBomb(
-            final Bomb bomb,
-            final Set<Cell> destroyedObjects,
+            final int bombCell,
+            final int bombTimer,
+            final int explosionRange,
             final TypeMap typeMap,
-            final IntegerMap explosionMap) {
-        checkExplosionWaveFromBomb(bomb, bomb.position, explosionMap);
-        final List<Position> directions = new ArrayList<>(4);
-        directions.add(new Position(1, 0));
-        directions.add(new Position(-1, 0));
-        directions.add(new Position(0, 1));
-        directions.add(new Position(0, -1));
-        directions.forEach(dir -> {
-            int explosionRadius = bomb.explosionRange - 1;
-            Position pos = bomb.position;
-            while (explosionRadius > 0) {
-                --explosionRadius;
-                pos = pos.add(dir);
-                if ((pos.x < 0) || (pos.y < 0) || (pos.x >= world.grid.width) || (pos.y >= world.grid.height)) {
-                    break; // end of map
-                }
-                final Cell cell = world.grid.cells[pos.x][pos.y];
-                final Cell.Type cellType = typeMap.at(pos).value;
-                checkExplosionWaveFromBomb(bomb, cell.position, explosionMap);
-                if (Cell.EXPLOSION_STOPPERS.contains(cellType)) {
-                    if (Cell.DESTROYABLE_OBJECTS.contains(cellType) && !destroyedObjects.contains(cell)) {
-//                        System.err.println("Destroyed: " + cell);
-                        destroyedObjects.add(cell);
-                    }
-                    break;
-                }
+            final IntegerMap explosionMap,
+            final BitBoard explosionArea,
+            final MapArena arena) {
+        final BitBoard blast = calculateBlast(bombCell, explosionRange, typeMap, arena);
+        explosionArea.or(blast);
+        final int stateAtBombPosition = explosionMap.at(bombCell);
+        final int timer = (stateAtBombPosition == Bomb.NO_EXPLOSION) ? bombTimer : stateAtBombPosition; // check for chain effect
+        for (int cell = blast.nextSetBit(0); cell >= 0; cell = blast.nextSetBit(cell + 1)) {
+            final int previousValue = explosionMap.at(cell);
+            if (previousValue == Bomb.NO_EXPLOSION || previousValue > timer) {
+                explosionMap.set(cell, timer);
             }
-        });
-    }
-
-    Cell findNearestCellWithHighestUtility(int scanRange, final IntegerMap utilityMap, final PathMap pathMap, boolean ignoreZeroUtility) {
-        final int maxUtility = world.grid.asList
-                .stream()
-                .filter(c -> pathMap.at(c.position).distance <= scanRange)
-                .mapToInt(c -> utilityMap.at(c.position).value)
-                .max()
-                .orElse(0);
-        if (ignoreZeroUtility && maxUtility == 0) {
-            return null;
         }
-        return world.grid.asList
-                .stream()
-                .filter(c -> pathMap.at(c.position).distance <= scanRange)
-                .filter(c -> utilityMap.at(c.position).value == maxUtility)
-                .min((o1, o2) -> pathMap.at(o1.position).distance - pathMap.at(o2.position).distance)
-                .orElse(null);
     }
 
     void checkExplosionsAndDodge(final Position playerPos, final TypeMap typeMap, final PathMap pathMap, final IntegerMap safetyMap) {
-        final List<Position> adjacentPositions = generateAdjacentPositions(playerPos, Cell.PASSABLE_SUBTYPES, typeMap);
-        final Cell[][] cells = world.grid.cells;
-        final Cell playersCell = cells[playerPos.x][playerPos.y];
-        final IntegerParameter playerSafety = safetyMap.at(playerPos);
-        if (playerSafety.value == Bomb.EXPLODE_NEXT_TURN) {
-            System.err.println("Player's position will explode next turn!");
-            final Cell dodgeCell = adjacentPositions
-                    .stream()
-                    .filter(p -> pathMap.at(p).distance == 1) // get reachable adjacent positions
-                    .map(p -> cells[p.x][p.y])
-                    .max((o1, o2) -> {
-                        int safety1 = safetyMap.at(o1.position).value;
-                        if (safety1 == Bomb.NO_EXPLOSION) {
-                            safety1 = 100500;
-                        }
-                        int safety2 = safetyMap.at(o2.position).value;
-                        if (safety2 == Bomb.NO_EXPLOSION) {
-                            safety2 = 100500;
-                        }
-                        return safety1 - safety2;
-                    })
-                    .orElse(playersCell);
-            System.err.println("Cell to dodge: " + dodgeCell);
-            final Move dodge = new Move(dodgeCell.position, world.player);
+        final GridTopology topology = world.grid.topology;
+        final Cell playersCell = world.grid.cells[playerPos.x][playerPos.y];
+        if (safetyMap.at(playerPos) == Bomb.EXPLODE_NEXT_TURN) {
+            Log.info("Player's position will explode next turn!");
+            final DangerGrid dangerGrid = arena.dangerGrid;
+            dangerGrid.build(world.bombs, arena.explosionMap, typeMap);
+            dangerGrid.expand(playersCell.index);
+            dangerGrid.backtrack();
+            final BitBoard survivable = dangerGrid.survivable[1];
+            final boolean canSurvive = !survivable.isEmpty();
+            Cell dodgeCell = playersCell;
+            int dodgeSafety = Integer.MIN_VALUE;
+            int dodgeThreat = ThreatLayer.CERTAIN;
+            for (int i = 0; i < topology.neighbourCount(playersCell.index); ++i) {
+                final int adjacentCell = topology.neighbour(playersCell.index, i);
+                if (!typeMap.passable.get(adjacentCell)
+                        || pathMap.distanceAt(adjacentCell) != 1) { // get reachable adjacent positions
+                    continue;
+                }
+                if (canSurvive && !survivable.get(adjacentCell)) {
+                    continue; // a dead end in time
+                }
+                int safety = safetyMap.at(adjacentCell);
+                if (safety == Bomb.NO_EXPLOSION) {
+                    safety = 100500;
+                }
+                if (threatLayer.avoid(adjacentCell)) {
+                    safety -= 200000; // below every cell less threatened
+                }
+                final int threat = threatLayer.threat[adjacentCell];
+                if (safety > dodgeSafety || safety == dodgeSafety && threat < dodgeThreat) {
+                    dodgeSafety = safety;
+                    dodgeThreat = threat;
+                    dodgeCell = world.grid.asList.get(adjacentCell);
+                }
+            }
+            final Cell cellToDodge = dodgeCell;
+            Log.info(() -> "Cell to dodge: " + cellToDodge);
+            final Move dodge = new Move(cellToDodge.position, world.player);
             dodge.priority = Action.HIGH_PRIORITY;
             planner.add(dodge);
         }
 //        else {
 //            adjacentPositions
 //                    .stream()
-//                    .filter(p -> safetyMap.at(p).value == Bomb.EXPLODE_NEXT_TURN)
+//                    .filter(p -> safetyMap.at(p) == Bomb.EXPLODE_NEXT_TURN)
 //                    .findAny()
 //                    .ifPresent(c -> {
 //                        final SkipTurn skip = new SkipTurn(world.player, "Dodge explosion");
@@ -1273,163 +3967,383 @@ class Player {
 //        }
     }
 
+    /**
+     * Explosion map and doomed objects with the new bombs placed turnsInFuture turns from now,
+     * timers are as seen at that moment. The new bombs go into bombs, followed by the bombs of the turn.
+     */
     void modelNewBomb(
-            final Collection<Bomb> newBombs,
-            final Position playerPosition,
+            final BombStore bombs,
             final int turnsInFuture,
             final TypeMap typeMap,
-            final IntegerMap utilityMap,
-            final PathMap pathMap,
             final IntegerMap explosionMap,
-            final IntegerMap safetyMap
+            final BitBoard explosionArea,
+            final BitBoard willBeDestroyedObjects,
+            final MapArena arena
     ) {
-//        System.err.println("Model explosion");
-//        System.err.println("Turns in future = " + turnsInFuture);
-        final List<Bomb> bombs = new ArrayList<>(world.allBombs.size() + 1);
-        newBombs.forEach(b -> {
-            b.timer += turnsInFuture;
-            bombs.add(b);
-            typeMap.at(b.position).value = Cell.Type.Bomb;
-        });
-        world.allBombs.forEach(bombs::add);
-        calculateExplosionMap(bombs, typeMap, explosionMap);
-        explosionMap.asList.forEach(c -> c.value = Math.max(0, c.value - turnsInFuture));
-        final Set<Cell> willBeDestroyedObjects = new HashSet<>();
-        willBeDestroyedObjects.addAll(
-                world.grid.asList
-                        .stream()
-                        .filter(c -> Cell.DESTROYABLE_OBJECTS.contains(typeMap.at(c.position).value))
-                        .filter(c -> explosionMap.at(c.position).value >= Bomb.ALREADY_EXPLODED)
-                        .collect(Collectors.toSet())
-        );
-        calculateCellsUtilityAndPathsAndSafetyMap(
-                playerPosition,
-                willBeDestroyedObjects,
-                typeMap,
-                explosionMap,
-                utilityMap,
-                pathMap,
-                safetyMap
-        );
-//        System.err.println(world.grid.showExplosionMap(explosionMap, typeMap));
-//        System.err.println(world.grid.showSafetyMap(safetyMap));
-    }
-
-    List<Position> generateAdjacentPositions(final Position center, final EnumSet<Cell.Type> filter, final TypeMap typeMap) {
-        final List<Position> adjacentPositions = new ArrayList<>(4);
-        if (center.x - 1 >= 0) {
-            adjacentPositions.add(new Position(center.x - 1, center.y));
+        for (int i = 0; i < bombs.count; ++i) {
+            bombs.timers[i] += turnsInFuture;
+            typeMap.set(bombs.cells[i], Cell.Type.Bomb);
         }
-        if (center.x + 1 < world.grid.width) {
-            adjacentPositions.add(new Position(center.x + 1, center.y));
-        }
-        if (center.y - 1 >= 0) {
-            adjacentPositions.add(new Position(center.x, center.y - 1));
-        }
-        if (center.y + 1 < world.grid.height) {
-            adjacentPositions.add(new Position(center.x, center.y + 1));
-        }
-        if (filter == null) {
-            return adjacentPositions;
-        } else {
-            return adjacentPositions.stream()
-                    .filter(p -> filter.contains(typeMap.at(p).value))
-                    .collect(Collectors.toList());
+        bombs.addAll(world.bombs);
+        profiler.begin("explosion map");
+        calculateExplosionMap(bombs, typeMap, explosionMap, explosionArea, arena);
+        profiler.end();
+        for (int cell = explosionArea.nextSetBit(0); cell >= 0; cell = explosionArea.nextSetBit(cell + 1)) {
+            final int timeToExplosion = Math.max(0, explosionMap.at(cell) - turnsInFuture);
+            explosionMap.set(cell, timeToExplosion);
+            if (timeToExplosion == Bomb.NO_EXPLOSION) {
+                explosionArea.clear(cell);
+            }
         }
+        willBeDestroyedObjects.copyFrom(typeMap.destroyable);
+        willBeDestroyedObjects.and(explosionArea);
     }
 
     List<Cell> getPathTo(final Cell targetCell, final PathMap pathMap) {
-        final PathParameter targetPathParameter = pathMap.at(targetCell.position);
-        final List<Cell> path = new ArrayList<>(targetPathParameter.distance);
-        if (targetPathParameter.previousCell == null) {
+        final List<Cell> path = new ArrayList<>(pathMap.distanceAt(targetCell.position));
+        if (pathMap.previousCellAt(targetCell.position) == PathMap.NO_PREVIOUS_CELL) {
             // player is already on the target cell
             return path; // empty path
         }
         Cell nextCell = targetCell;
-        PathParameter nextPathParameter = targetPathParameter;
         do {
             path.add(nextCell);
-            nextCell = nextPathParameter.previousCell;
-            nextPathParameter = pathMap.at(nextCell.position);
-        } while (nextPathParameter.previousCell != null);
+            nextCell = world.grid.asList.get(pathMap.previousCellAt(nextCell.position));
+        } while (pathMap.previousCellAt(nextCell.position) != PathMap.NO_PREVIOUS_CELL);
         Collections.reverse(path);
         return path;
     }
 
-    int getSafetyCellCount(final IntegerMap safetyMap) {
-        return (int) safetyMap.asList
-                .stream()
-                .filter(p -> p.value == Bomb.NO_EXPLOSION)
-                .count();
-    }
-
     Cell findNearestSafetyPoint(final IntegerMap safetyMap, final PathMap pathMap) {
         return world.grid.asList
                 .stream()
-                .filter(c -> safetyMap.at(c.position).value == Bomb.NO_EXPLOSION)
-                .min((o1, o2) -> pathMap.at(o1.position).distance - pathMap.at(o2.position).distance)
+                .filter(c -> safetyMap.at(c.position) == Bomb.NO_EXPLOSION)
+                .min((o1, o2) -> pathMap.distanceAt(o1.position) - pathMap.distanceAt(o2.position))
                 .orElse(null);
     }
 
-    Cell findTarget(
-            final int initialScanRange,
-            final int scanDepth,
-            final boolean ignoreZeroUtility,
-            final IntegerMap utilityMap,
-            final PathMap pathMap) {
-        Cell targetCell = null;
-        int scanCount = scanDepth;
-        int scanRange = initialScanRange;
-
-        while (targetCell == null && scanCount-- > 0) {
-            System.err.println(
-                    "Search target, scan range = "
-                            + scanRange
-                            + " "
-                            + (ignoreZeroUtility ? "ignore zero utility" : "check zero utility")
-            );
-            targetCell = findNearestCellWithHighestUtility(scanRange, utilityMap, pathMap, ignoreZeroUtility);
-            scanRange *= 2;
-        }
-        return targetCell;
-    }
-
     Cell findCellToRetreat(final Cell bombTarget, final TypeMap typeMap, final PathMap pathMap) {
-        final Position targetPosition = bombTarget.position;
-        final int distanceToTarget = pathMap.at(targetPosition).distance;
-        final List<Position> adjacentPositions = generateAdjacentPositions(targetPosition, Cell.PASSABLE_SUBTYPES, typeMap);
+        final int knownRetreat = arena.retreats.at(bombTarget.index);
+        if (knownRetreat != RETREAT_UNKNOWN) {
+            return knownRetreat == NO_RETREAT ? null : world.grid.asList.get(knownRetreat);
+        }
+        final int distanceToTarget = pathMap.distanceAt(bombTarget.position);
+        final GridTopology topology = world.grid.topology;
         int maxSafetyCellCount = 0;
         Cell cellToRetreat = null;
-        for (int i = 0; i < adjacentPositions.size(); ++i) {
-            final Position adjacentPosition = adjacentPositions.get(i);
-            System.err.println("Check adjacent position: " + adjacentPosition);
-            final TypeMap typeMapModel = typeMap.getDeepCopy(world.grid.width, world.grid.height);
-            final IntegerMap utilityMapModel = IntegerMap.createUtilityMap(world.grid.width, world.grid.height);
-            final PathMap pathMapModel = PathMap.createPathMap(world.grid.width, world.grid.height);
-            final IntegerMap explosionMapModel = IntegerMap.createExplosionMap(world.grid.width, world.grid.height);
-            final IntegerMap safetyMapModel = IntegerMap.createSafetyMap(world.grid.width, world.grid.height);
-            final List<Bomb> newBombs = new ArrayList<>(4);
-            newBombs.add(world.player.createBomb(targetPosition));
-            modelNewBomb(
-                    newBombs,
-                    adjacentPosition,
-                    distanceToTarget + 1, // turns to go and one turn to place bomb
-                    typeMapModel,
-                    utilityMapModel,
-                    pathMapModel,
-                    explosionMapModel,
-                    safetyMapModel
-            );
-            if (safetyMapModel.at(adjacentPosition).value == Bomb.ALREADY_EXPLODED) {
+        for (int i = 0; i < topology.neighbourCount(bombTarget.index); ++i) {
+            final Cell adjacentCell = world.grid.asList.get(topology.neighbour(bombTarget.index, i));
+            if (!typeMap.passable.get(adjacentCell.index)) {
+                continue;
+            }
+            if (cellToRetreat != null && deadline.expired()) {
+                break;
+            }
+            Log.debug(() -> "Check adjacent position: " + adjacentCell.position);
+            profiler.begin("retreat candidate");
+            final int safetyCellCount = evaluateRetreat(bombTarget, adjacentCell, distanceToTarget, typeMap, arena);
+            profiler.end();
+            if (safetyCellCount == RETREAT_FAILS) {
                 continue;
             }
-            final int safetyCellCount = getSafetyCellCount(safetyMapModel);
-            System.err.println("Safety cells: " + safetyCellCount);
-            if (safetyCellCount > maxSafetyCellCount) {
+            Log.debug(() -> "Safety cells: " + safetyCellCount);
+            if (isBetterRetreat(adjacentCell, safetyCellCount, cellToRetreat, maxSafetyCellCount)) {
                 maxSafetyCellCount = safetyCellCount;
-                cellToRetreat = world.grid.cells[adjacentPosition.x][adjacentPosition.y];
+                cellToRetreat = adjacentCell;
             }
         }
+        arena.retreats.set(bombTarget.index, cellToRetreat == null ? NO_RETREAT : cellToRetreat.index);
+        arena.retreatSafetyCellCounts[bombTarget.index] = maxSafetyCellCount;
         return cellToRetreat;
     }
+
+    /**
+     * More safe cells win, on a tie the cell less threatened by enemy bombs.
+     */
+    boolean isBetterRetreat(final Cell cell, final int safetyCellCount, final Cell best, final int bestSafetyCellCount) {
+        if (safetyCellCount != bestSafetyCellCount || best == null) {
+            return safetyCellCount > bestSafetyCellCount;
+        }
+        return threatLayer.threat[cell.index] < threatLayer.threat[best.index];
+    }
+
+    /**
+     * Models a bomb at bombTarget and the player retreating to adjacentCell,
+     * touches nothing but the model maps and scratch of the given arena.
+     *
+     * @return number of safe cells reachable after the retreat, at most ESCAPE_LIMIT;
+     * RETREAT_FAILS if adjacentCell is hit
+     */
+    int evaluateRetreat(
+            final Cell bombTarget,
+            final Cell adjacentCell,
+            final int distanceToTarget,
+            final TypeMap typeMap,
+            final MapArena arena
+    ) {
+        arena.resetModelMaps(typeMap);
+        final IntegerMap explosionMapModel = arena.explosionMapModel;
+        final BombStore bombs = arena.bombsModel;
+        bombs.clear();
+        bombs.add(bombTarget.position.x, bombTarget.position.y, bombTarget.index,
+                Bomb.COUNTDOWN, world.player.explosionRange, world.player.id);
+        modelNewBomb(
+                bombs,
+                distanceToTarget + 1, // turns to go and one turn to place bomb
+                arena.typeMapModel,
+                explosionMapModel,
+                arena.explosionAreaModel,
+                arena.willBeDestroyedObjectsModel,
+                arena
+        );
+        if (explosionMapModel.at(adjacentCell.index) == Bomb.ALREADY_EXPLODED) {
+            return RETREAT_FAILS;
+        }
+        final DangerGrid dangerGrid = arena.dangerGrid;
+        dangerGrid.build(bombs, explosionMapModel, arena.typeMapModel, DangerGrid.lastBlast(bombs, explosionMapModel));
+        final int safetyCellCount = dangerGrid.countSafeCells(adjacentCell.index, ESCAPE_LIMIT);
+        return safetyCellCount == 0 ? RETREAT_FAILS : safetyCellCount; // every way out burns at some turn
+    }
+
+    /**
+     * findCellToRetreat() for several targets at once, all (target, adjacent cell) pairs are
+     * evaluated on the workers and reduced here in the sequential order, with the same logs. Once the deadline
+     * has passed, no more pairs of a target that already has a retreat are evaluated, as in findCellToRetreat().
+     *
+     * @return retreats of the targets, scratch of the arena valid until the next call
+     */
+    Cell[] findCellsToRetreat(final Cell[] targets, final int targetCount, final TypeMap typeMap, final PathMap pathMap) {
+        final GridTopology topology = world.grid.topology;
+        final int[] pairTargets = arena.pairTargets;
+        final Cell[] pairCells = arena.pairCells;
+        final int[] distances = arena.retreatDistances;
+        final Cell[] cellsToRetreat = arena.cellsToRetreat;
+        final boolean[] known = arena.knownRetreats;
+        final int[] maxSafetyCellCounts = arena.maxSafetyCellCounts;
+        int pairCount = 0;
+        for (int target = 0; target < targetCount; ++target) {
+            cellsToRetreat[target] = null;
+            known[target] = false;
+            maxSafetyCellCounts[target] = 0;
+            arena.retreatFound.set(target, 0);
+            final int targetIndex = targets[target].index;
+            final int knownRetreat = arena.retreats.at(targetIndex);
+            if (knownRetreat != RETREAT_UNKNOWN) {
+                known[target] = true;
+                cellsToRetreat[target] = knownRetreat == NO_RETREAT ? null : world.grid.asList.get(knownRetreat);
+                continue;
+            }
+            distances[target] = pathMap.distanceAt(targetIndex);
+            for (int i = 0; i < topology.neighbourCount(targetIndex); ++i) {
+                final int adjacentCell = topology.neighbour(targetIndex, i);
+                if (typeMap.passable.get(adjacentCell)) {
+                    pairTargets[pairCount] = target;
+                    pairCells[pairCount] = world.grid.asList.get(adjacentCell);
+                    ++pairCount;
+                }
+            }
+        }
+
+        final int[] safetyCellCounts = arena.safetyCellCounts;
+        final AtomicIntegerArray retreatFound = arena.retreatFound;
+        profiler.begin("retreat candidates");
+        workers.forEach(pairCount, pair -> {
+            final int target = pairTargets[pair];
+            if (retreatFound.get(target) != 0 && deadline.expired()) {
+                safetyCellCounts[pair] = RETREAT_SKIPPED; // as findCellToRetreat() stops
+                return;
+            }
+            final int safetyCellCount = evaluateRetreat(
+                    targets[target],
+                    pairCells[pair],
+                    distances[target],
+                    typeMap,
+                    SearchWorkers.arena(arena)
+            );
+            safetyCellCounts[pair] = safetyCellCount;
+            if (safetyCellCount != RETREAT_FAILS) {
+                retreatFound.set(target, 1);
+            }
+        });
+        profiler.end();
+
+        for (int pair = 0; pair < pairCount; ++pair) {
+            final int target = pairTargets[pair];
+            final Cell adjacentCell = pairCells[pair];
+            final int safetyCellCount = safetyCellCounts[pair];
+            if (safetyCellCount == RETREAT_SKIPPED) {
+                continue;
+            }
+            Log.debug(() -> "Check adjacent position: " + adjacentCell.position);
+            if (safetyCellCount == RETREAT_FAILS) {
+                continue;
+            }
+            Log.debug(() -> "Safety cells: " + safetyCellCount);
+            if (isBetterRetreat(adjacentCell, safetyCellCount, cellsToRetreat[target], maxSafetyCellCounts[target])) {
+                maxSafetyCellCounts[target] = safetyCellCount;
+                cellsToRetreat[target] = adjacentCell;
+            }
+        }
+        for (int target = 0; target < targetCount; ++target) {
+            if (!known[target]) {
+                final Cell cellToRetreat = cellsToRetreat[target];
+                arena.retreats.set(targets[target].index, cellToRetreat == null ? NO_RETREAT : cellToRetreat.index);
+                arena.retreatSafetyCellCounts[targets[target].index] = maxSafetyCellCounts[target];
+            }
+        }
+        return cellsToRetreat;
+    }
+
+    /**
+     * Tries the target candidates in order and plans the best one with a retreat, see planScore(). Once a
+     * target has a retreat only the candidates of its scan level compete, until the deadline. A rejected
+     * target is zeroed in the utility map, so when all candidates fail the next extraction gives the following ones.
+     */
+    void findTargetAndRetreat(
+            final int initialScanRange,
+            final boolean ignoreZeroUtility,
+            final TypeMap typeMap,
+            final IntegerMap utilityMap,
+            final PathMap pathMap,
+            final IntegerMap safetyMap
+    ) {
+        final TargetCandidates candidates = arena.targetCandidates;
+        boolean first = true;
+        while (true) {
+            candidates.extract(initialScanRange, 5, ignoreZeroUtility, utilities, pathMap, arena.visitOrder, arena.visitCount);
+            Cell bestTarget = null;
+            Cell bestRetreat = null;
+            int bestLevel = 0;
+            int bestScore = 0;
+            for (int i = 0; i < candidates.count; ++i) {
+                if (bestTarget != null && candidates.levels[i] != bestLevel) {
+                    break;
+                }
+                if (!first && deadline.expired()) {
+                    break;
+                }
+                first = false;
+                final Cell targetCell = world.grid.asList.get(candidates.cells[i]);
+                Log.info(() -> "Target cell: " + targetCell);
+                final Cell cellToRetreat = findCellToRetreat(targetCell, typeMap, pathMap);
+                Log.info(() -> "Cell to retreat: " + cellToRetreat);
+                if (cellToRetreat == null) {
+                    utilityMap.set(targetCell.index, 0);
+                    continue;
+                }
+                final int score = planScore(targetCell, cellToRetreat);
+                Log.info(() -> "Plan score: " + score);
+                if (bestTarget == null || score > bestScore) {
+                    bestTarget = targetCell;
+                    bestRetreat = cellToRetreat;
+                    bestLevel = candidates.levels[i];
+                    bestScore = score;
+                }
+            }
+            if (bestTarget != null) {
+                planBombAndRetreat(bestTarget, bestRetreat, pathMap);
+                return;
+            }
+            if (!first && deadline.expired()) {
+                return;
+            }
+            if (candidates.count < TargetCandidates.CAPACITY) {
+                Log.info("Target cell: null");
+                Log.info("No target found, go to safety point");
+                planGoToSafetyPoint(safetyMap, pathMap);
+                return;
+            }
+        }
+    }
+
+    /**
+     * findTargetAndRetreat() with the retreats of SearchWorkers.THREADS candidates checked at once.
+     * The results are taken in the candidate order with the same ranking, so the plan is the one of
+     * the sequential loop as long as the deadline is not reached.
+     */
+    void findTargetAndRetreatInParallel(
+            final int initialScanRange,
+            final boolean ignoreZeroUtility,
+            final TypeMap typeMap,
+            final IntegerMap utilityMap,
+            final PathMap pathMap,
+            final IntegerMap safetyMap
+    ) {
+        final TargetCandidates candidates = arena.targetCandidates;
+        final Cell[] targets = arena.retreatTargets;
+        boolean first = true;
+        while (true) {
+            candidates.extract(initialScanRange, 5, ignoreZeroUtility, utilities, pathMap, arena.visitOrder, arena.visitCount);
+            Cell bestTarget = null;
+            Cell bestRetreat = null;
+            int bestLevel = 0;
+            int bestScore = 0;
+            batches:
+            for (int start = 0; start < candidates.count; start += SearchWorkers.THREADS) {
+                if (bestTarget != null && candidates.levels[start] != bestLevel) {
+                    break;
+                }
+                if (!first && deadline.expired()) {
+                    break;
+                }
+                first = false;
+                final int targetCount = Math.min(SearchWorkers.THREADS, candidates.count - start);
+                for (int i = 0; i < targetCount; ++i) {
+                    targets[i] = world.grid.asList.get(candidates.cells[start + i]);
+                }
+                final Cell[] cellsToRetreat = findCellsToRetreat(targets, targetCount, typeMap, pathMap);
+                for (int i = 0; i < targetCount; ++i) {
+                    if (bestTarget != null && candidates.levels[start + i] != bestLevel) {
+                        break batches;
+                    }
+                    final Cell targetCell = targets[i];
+                    final Cell cellToRetreat = cellsToRetreat[i];
+                    Log.info(() -> "Target cell: " + targetCell);
+                    Log.info(() -> "Cell to retreat: " + cellToRetreat);
+                    if (cellToRetreat == null) {
+                        utilityMap.set(targetCell.index, 0);
+                        continue;
+                    }
+                    final int score = planScore(targetCell, cellToRetreat);
+                    Log.info(() -> "Plan score: " + score);
+                    if (bestTarget == null || score > bestScore) {
+                        bestTarget = targetCell;
+                        bestRetreat = cellToRetreat;
+                        bestLevel = candidates.levels[start + i];
+                        bestScore = score;
+                    }
+                }
+            }
+            if (bestTarget != null) {
+                planBombAndRetreat(bestTarget, bestRetreat, pathMap);
+                return;
+            }
+            if (!first && deadline.expired()) {
+                return;
+            }
+            if (candidates.count < TargetCandidates.CAPACITY) {
+                Log.info("Target cell: null");
+                Log.info("No target found, go to safety point");
+                planGoToSafetyPoint(safetyMap, pathMap);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Utility of bombing targetCell less the risk of its retreat: RETREAT_RISK scaled by the safe cells
+     * short of ESCAPE_LIMIT, and the enemy threat on the retreat cell.
+     */
+    int planScore(final Cell targetCell, final Cell cellToRetreat) {
+        final int missingSafetyCells = ESCAPE_LIMIT - arena.retreatSafetyCellCounts[targetCell.index];
+        return utilityAt(targetCell.index)
+                - missingSafetyCells * RETREAT_RISK / ESCAPE_LIMIT
+                - threatLayer.cost(cellToRetreat.index);
+    }
+
+    void planBombAndRetreat(final Cell targetCell, final Cell cellToRetreat, final PathMap pathMap) {
+        final List<Cell> path = getPathTo(targetCell, pathMap);
+        path.forEach(c -> planner.add(new Move(c.position, world.player)));
+        planner.add(new PlaceBombAndGoTo(cellToRetreat.position, world.player));
+    }
 }
\ No newline at end of file
@@ -0,0 +1,337 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-benchmarks of the per-turn hot paths on the seeded boards of BoardFixtures.
+ * Every benchmark runs warm-up iterations and then measured iterations of a fixed duration, each operation
+ * is timed on its own. Allocation per operation comes from the thread allocation counter of HotSpot,
+ * collections are counted over the measured iterations.
+ * With --record the turn benchmark plays the frames of a match recorded with -Dhypersonic.record=file instead.
+ * <pre>
+ * java -cp out Bench [--filter retreat] [--warmup 5] [--iterations 10] [--iteration-ms 500] [--seed 1]
+ * java -cp out Bench --filter turn --record match.log
+ * </pre>
+ */
+class Bench {
+    private static final PrintStream NO_OUTPUT = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    });
+
+    /**
+     * One operation of a benchmark, its result is consumed so the JIT cannot drop the work.
+     */
+    interface Operation {
+        long run();
+    }
+
+    interface Setup {
+        Operation create(BoardFixtures.Stage stage, long seed);
+    }
+
+    static class Benchmark {
+        final String name;
+        final Setup setup;
+
+        Benchmark(String name, Setup setup) {
+            this.name = name;
+            this.setup = setup;
+        }
+    }
+
+    private final List<Benchmark> benchmarks = new ArrayList<>();
+    private String filter = "";
+    private int warmupIterations = 5;
+    private int iterations = 10;
+    private long iterationNanos = TimeUnit.MILLISECONDS.toNanos(500);
+    private long seed = 1;
+    private Replay recording; // null for the generated boards
+    private long sink;
+
+    Bench(String[] args) throws IOException {
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--filter":
+                    filter = args[++i];
+                    break;
+                case "--warmup":
+                    warmupIterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--iterations":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "--iteration-ms":
+                    iterationNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(args[++i]));
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--record":
+                    recording = new Replay(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        benchmarks.add(new Benchmark("parse", Bench::parse));
+        benchmarks.add(new Benchmark("explosion map", Bench::explosionMap));
+        benchmarks.add(new Benchmark("paths", Bench::paths));
+        benchmarks.add(new Benchmark("retreat", Bench::retreat));
+        benchmarks.add(new Benchmark("turn", Bench::turn));
+    }
+
+    public static void main(String[] args) throws IOException {
+        new Bench(args).runAll();
+    }
+
+    void runAll() {
+        System.out.println(String.format(Locale.ROOT, "%-14s %-6s %9s %10s %10s %10s %12s %4s %7s",
+                "benchmark", "stage", "ops", "mean us", "p50 us", "p99 us", "alloc B/op", "gc", "gc ms"));
+        for (Benchmark benchmark : benchmarks) {
+            if (!benchmark.name.contains(filter)) {
+                continue;
+            }
+            if (recording != null && benchmark.name.equals("turn")) {
+                measure(benchmark.name, "record", recordedTurn(recording));
+                continue;
+            }
+            for (BoardFixtures.Stage stage : BoardFixtures.Stage.values()) {
+                measure(benchmark.name, stage.name().toLowerCase(Locale.ROOT), benchmark.setup.create(stage, seed));
+            }
+        }
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    private void measure(String name, String stage, Operation operation) {
+        for (int i = 0; i < warmupIterations; ++i) {
+            iterate(operation, null);
+        }
+        final Histogram histogram = new Histogram();
+        final long gcCountBefore = gcCount();
+        final long gcTimeBefore = gcMillis();
+        final long allocatedBefore = allocatedBytes();
+        for (int i = 0; i < iterations; ++i) {
+            iterate(operation, histogram);
+        }
+        final long allocated = allocatedBytes() - allocatedBefore;
+        System.out.println(String.format(Locale.ROOT, "%-14s %-6s %9d %10.2f %10.2f %10.2f %12d %4d %7d",
+                name, stage, histogram.count,
+                histogram.total / 1e3 / histogram.count, histogram.percentile(0.5) / 1e3, histogram.percentile(0.99) / 1e3,
+                allocated / histogram.count, gcCount() - gcCountBefore, gcMillis() - gcTimeBefore));
+    }
+
+    private void iterate(Operation operation, Histogram histogram) {
+        final long end = System.nanoTime() + iterationNanos;
+        long now;
+        do {
+            final long start = System.nanoTime();
+            sink += operation.run();
+            now = System.nanoTime();
+            if (histogram != null) {
+                histogram.record(now - start);
+            }
+        } while (now < end);
+    }
+
+    /**
+     * Player fed with the init line and then the frame of the stage again and again.
+     */
+    private static Player player(BoardFixtures.Stage stage, long seed) {
+        final String input = BoardFixtures.input(stage, seed);
+        final int frameStart = input.indexOf('\n') + 1;
+        final Player player = new Player(new RepeatingInputStream(
+                input.substring(0, frameStart).getBytes(StandardCharsets.US_ASCII),
+                input.substring(frameStart).getBytes(StandardCharsets.US_ASCII)), NO_OUTPUT);
+        player.initWorld();
+        return player;
+    }
+
+    private static Operation parse(BoardFixtures.Stage stage, long seed) {
+        final Player player = player(stage, seed);
+        return () -> {
+            player.profiler.startTurn();
+            player.readTurn();
+            player.profiler.endTurn();
+            return player.world.bombs.count;
+        };
+    }
+
+    private static Operation explosionMap(BoardFixtures.Stage stage, long seed) {
+        final Player player = player(stage, seed);
+        final MapArena arena = player.arena;
+        player.profiler.startTurn();
+        player.readTurn();
+        player.profiler.endTurn();
+        return () -> {
+            arena.explosionMap.fill(Bomb.NO_EXPLOSION);
+            arena.explosionArea.clear();
+            player.calculateExplosionMap(player.world.bombs, arena.typeMap, arena.explosionMap, arena.explosionArea, arena);
+            return arena.explosionArea.cardinality();
+        };
+    }
+
+    /**
+     * One path search per operation, followed by the target candidates which score the utilities they examine.
+     */
+    private static Operation paths(BoardFixtures.Stage stage, long seed) {
+        final Player player = player(stage, seed);
+        final MapArena arena = player.arena;
+        player.profiler.startTurn();
+        player.readTurn();
+        player.updateExplosionMap();
+        player.profiler.endTurn();
+        player.footprints.update(arena.typeMap, arena.willBeDestroyedObjects, player.world.player.explosionRange);
+        return () -> {
+            player.profiler.startTurn();
+            arena.utilityMap.fill(0);
+            arena.pathMap.reset();
+            arena.safetyMap.fill(Bomb.ALREADY_EXPLODED);
+            player.calculatePathsAndSafetyMap(player.world.player.position,
+                    arena.typeMap, arena.explosionMap, arena.pathMap, arena.safetyMap, arena);
+            arena.targetCandidates.extract(2, 5, true, player.utilities, arena.pathMap, arena.visitOrder, arena.visitCount);
+            player.profiler.endTurn();
+            return arena.targetCandidates.count;
+        };
+    }
+
+    /**
+     * One findCellToRetreat() per operation, over the cells the player reaches in order, with a cold memo.
+     */
+    private static Operation retreat(BoardFixtures.Stage stage, long seed) {
+        final Player player = player(stage, seed);
+        final MapArena arena = player.arena;
+        player.profiler.startTurn();
+        player.readTurn();
+        player.updateExplosionMap();
+        player.calculatePathsAndSafetyMap(player.world.player.position,
+                arena.typeMap, arena.explosionMap, arena.pathMap, arena.safetyMap, arena);
+        player.profiler.endTurn();
+        final List<Cell> targets = new ArrayList<>();
+        for (Cell cell : player.world.grid.asList) {
+            if (arena.pathMap.distanceAt(cell.index) != Integer.MAX_VALUE) {
+                targets.add(cell);
+            }
+        }
+        final int[] next = new int[1];
+        return () -> {
+            final Cell target = targets.get(next[0]++ % targets.size());
+            player.profiler.startTurn();
+            player.deadline.start(true);
+            arena.retreats.fill(Player.RETREAT_UNKNOWN);
+            final Cell retreat = player.findCellToRetreat(target, arena.typeMap, arena.pathMap);
+            player.profiler.endTurn();
+            return retreat == null ? -1 : retreat.index;
+        };
+    }
+
+    /**
+     * Whole turns of a player whose frames cycle over the given stage and the two others,
+     * so every turn is a new board.
+     */
+    private static Operation turn(BoardFixtures.Stage stage, long seed) {
+        final StringBuilder frames = new StringBuilder();
+        final BoardFixtures.Stage[] stages = BoardFixtures.Stage.values();
+        for (int i = 0; i < stages.length; ++i) {
+            frames.append(BoardFixtures.frame(stages[(stage.ordinal() + i) % stages.length], seed));
+        }
+        final Player player = new Player(new RepeatingInputStream(
+                new Match(seed, BoardFixtures.PLAYERS, 0, 0).initLine(0).getBytes(StandardCharsets.US_ASCII),
+                frames.toString().getBytes(StandardCharsets.US_ASCII)), NO_OUTPUT);
+        player.initWorld();
+        return () -> {
+            player.playTurn();
+            return player.world.player.position.x;
+        };
+    }
+
+    /**
+     * Whole turns of a player whose frames cycle over the turns of a recorded match.
+     */
+    private static Operation recordedTurn(Replay recording) {
+        if (recording.frames.isEmpty()) {
+            throw new IllegalArgumentException("The log has no turns");
+        }
+        final ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (byte[] frame : recording.frames) {
+            frames.write(frame, 0, frame.length);
+        }
+        final Player player = new Player(new RepeatingInputStream(recording.init, frames.toByteArray()), NO_OUTPUT);
+        player.initWorld();
+        return () -> {
+            player.playTurn();
+            return player.world.player.position.x;
+        };
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    /**
+     * Prefix once, then the body over and over, the input of a game that never ends.
+     */
+    static class RepeatingInputStream extends InputStream {
+        private final byte[] body;
+        private ByteArrayInputStream current;
+
+        RepeatingInputStream(byte[] prefix, byte[] body) {
+            this.body = body;
+            current = new ByteArrayInputStream(prefix);
+        }
+
+        @Override
+        public int read() {
+            int c = current.read();
+            if (c < 0) {
+                current = new ByteArrayInputStream(body);
+                c = current.read();
+            }
+            return c;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int count = current.read(b, off, len);
+            if (count <= 0) {
+                current = new ByteArrayInputStream(body);
+                count = current.read(b, off, len);
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.util.Random;
+
+/**
+ * Seeded four-player boards of the referee map generator at three stages of a game, for the benchmarks.
+ * The mid game has 24 bombs with mixed timers and ranges, the end game few boxes and long ranges.
+ */
+class BoardFixtures {
+    enum Stage {
+        EARLY(1.0, 0, 1, 3),
+        MID(0.5, 24, 2, 4),
+        END(0.1, 6, 3, 7);
+
+        final double boxesLeft;
+        final int bombs;
+        final int bombsAvailable;
+        final int explosionRange;
+
+        Stage(double boxesLeft, int bombs, int bombsAvailable, int explosionRange) {
+            this.boxesLeft = boxesLeft;
+            this.bombs = bombs;
+            this.bombsAvailable = bombsAvailable;
+            this.explosionRange = explosionRange;
+        }
+    }
+
+    static final int PLAYERS = 4;
+    private static final int MIN_OPEN_AREA = 12;
+
+    private static final byte FLOOR = (byte) Cell.Type.Floor.ordinal();
+    private static final byte BOX_WITH_EXTRA_RANGE = (byte) Cell.Type.BoxWithExtraRange.ordinal();
+    private static final byte BOX_WITH_EXTRA_BOMB = (byte) Cell.Type.BoxWithExtraBomb.ordinal();
+    private static final byte EXTRA_RANGE = (byte) Cell.Type.ExtraRange.ordinal();
+    private static final byte EXTRA_BOMB = (byte) Cell.Type.ExtraBomb.ordinal();
+
+    private BoardFixtures() {
+    }
+
+    /**
+     * @return the init line of player 0 followed by the frame
+     */
+    static String input(Stage stage, long seed) {
+        final Match match = new Match(seed, PLAYERS, 0, 0);
+        return match.initLine(0) + frame(match, stage, new Random(seed));
+    }
+
+    static String frame(Stage stage, long seed) {
+        return frame(new Match(seed, PLAYERS, 0, 0), stage, new Random(seed));
+    }
+
+    private static String frame(Match match, Stage stage, Random random) {
+        final GameState state = match.state;
+        for (int cell = 0; cell < state.size; ++cell) {
+            final byte type = state.cells[cell];
+            if (Cell.BOX_SUBTYPES.contains(Cell.Type.VALUES[type]) && random.nextDouble() >= stage.boxesLeft) {
+                // destroyed, the hidden item may still lie there
+                state.cells[cell] = type == BOX_WITH_EXTRA_RANGE && random.nextBoolean() ? EXTRA_RANGE
+                        : type == BOX_WITH_EXTRA_BOMB && random.nextBoolean() ? EXTRA_BOMB
+                        : FLOOR;
+            }
+        }
+        for (int player = 0; player < PLAYERS; ++player) {
+            if (stage != Stage.EARLY) {
+                int cell;
+                do {
+                    cell = randomFreeCell(state, random);
+                } while (openArea(state, cell) < MIN_OPEN_AREA);
+                state.playerCells[player] = cell;
+            }
+            state.bombsAvailable[player] = stage.bombsAvailable;
+            state.explosionRanges[player] = stage.explosionRange;
+        }
+        // player 0 is the benchmarked one, it starts out of the direct blasts so its searches have work to do
+        final int width = state.topology.width;
+        final int playerCell = state.playerCells[0];
+        for (int i = 0; i < stage.bombs; ++i) {
+            final int owner = random.nextInt(PLAYERS);
+            final int range = 2 + random.nextInt(stage.explosionRange);
+            int cell;
+            do {
+                cell = randomFreeCell(state, random);
+            } while (cell / width == playerCell / width && Math.abs(cell - playerCell) < range
+                    || cell % width == playerCell % width && Math.abs(cell - playerCell) / width < range);
+            state.addBomb(cell, 1 + random.nextInt(Bomb.COUNTDOWN), range, owner);
+        }
+        state.hash = state.calculateHash();
+        return match.render();
+    }
+
+    private static int randomFreeCell(GameState state, Random random) {
+        while (true) {
+            final int cell = random.nextInt(state.size);
+            if (state.cells[cell] == FLOOR && !state.bombBoard.get(cell) && !isPlayerCell(state, cell)) {
+                return cell;
+            }
+        }
+    }
+
+    /**
+     * @return cells reachable from start without crossing boxes and walls, at most MIN_OPEN_AREA
+     */
+    private static int openArea(GameState state, int start) {
+        final int[] queue = new int[state.size];
+        final boolean[] seen = new boolean[state.size];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = start;
+        seen[start] = true;
+        while (head < tail && tail < MIN_OPEN_AREA) {
+            final int cell = queue[head++];
+            for (int i = 0; i < state.topology.neighbourCount(cell); ++i) {
+                final int next = state.topology.neighbour(cell, i);
+                if (!seen[next] && state.isPassable(next)) {
+                    seen[next] = true;
+                    queue[tail++] = next;
+                }
+            }
+        }
+        return Math.min(tail, MIN_OPEN_AREA);
+    }
+
+    private static boolean isPlayerCell(GameState state, int cell) {
+        for (int player = 0; player < PLAYERS; ++player) {
+            if (state.playerCells[player] == cell) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
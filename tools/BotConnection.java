@@ -0,0 +1,145 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Referee side of a bot: the protocol input goes to the bot, its answer lines come back through a queue,
+ * so the referee can wait for them with a timeout.
+ */
+abstract class BotConnection implements AutoCloseable {
+    private static final String END_OF_OUTPUT = "\u0000"; // never a valid answer
+
+    private final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+    private OutputStream input;
+    protected volatile Throwable crash;
+
+    /**
+     * Starts reading the bot answers on a daemon thread.
+     */
+    protected void connect(OutputStream botInput, InputStream botOutput, String name) {
+        input = botInput;
+        final Thread reader = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(botOutput, StandardCharsets.US_ASCII))) {
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    lines.add(line);
+                }
+            } catch (IOException e) {
+                // the bot is gone
+            }
+            lines.add(END_OF_OUTPUT);
+        }, name + "-output");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    void send(String text) throws IOException {
+        input.write(text.getBytes(StandardCharsets.US_ASCII));
+        input.flush();
+    }
+
+    /**
+     * @return the next answer, null if there is none within the timeout or the bot has stopped
+     */
+    String readLine(long timeoutNanos) throws InterruptedException {
+        final String line = lines.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+        if (line == END_OF_OUTPUT) {
+            lines.add(END_OF_OUTPUT);
+            return null;
+        }
+        return line;
+    }
+
+    /**
+     * @return the exception that stopped the bot, null while it runs or if it stopped on its own
+     */
+    Throwable crash() {
+        return crash;
+    }
+
+    @Override
+    public void close() {
+        try {
+            input.close();
+        } catch (IOException e) {
+            // already closed by the bot
+        }
+    }
+
+    /**
+     * Player of this class path running on its own thread of the referee JVM.
+     * Log and the other static switches are shared by all in-process bots.
+     */
+    static class InProcess extends BotConnection {
+        private static final int PIPE_SIZE = 1 << 16;
+
+        InProcess(String name) throws IOException {
+            final PipedInputStream botInput = new PipedInputStream(PIPE_SIZE);
+            final PipedOutputStream refereeOutput = new PipedOutputStream(botInput);
+            final PipedInputStream refereeInput = new PipedInputStream(PIPE_SIZE);
+            final PrintStream botOutput = new PrintStream(new PipedOutputStream(refereeInput), true);
+            final Thread bot = new Thread(() -> {
+                final Player player = new Player(botInput, botOutput);
+                try {
+                    player.initWorld();
+                    player.run();
+                } catch (RuntimeException e) {
+                    crash = e; // before the output closes, the referee checks it on the missing answer
+                    System.err.println(name + " crashed");
+                    e.printStackTrace();
+                } finally {
+                    botOutput.close();
+                }
+            }, name);
+            bot.setDaemon(true);
+            bot.start();
+            connect(refereeOutput, refereeInput, name);
+        }
+    }
+
+    /**
+     * Player started as a separate JVM, talking over its standard streams.
+     * Its log is off unless the JVM options turn it on, stderr goes to the referee's.
+     */
+    static class External extends BotConnection {
+        private final Process process;
+
+        External(String classPath, List<String> jvmOptions, String name) throws IOException {
+            final List<String> command = new ArrayList<>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.add("-Dhypersonic.log=off");
+            command.addAll(jvmOptions);
+            command.add("-cp");
+            command.add(classPath);
+            command.add("Player");
+            process = new ProcessBuilder(command)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            connect(process.getOutputStream(), process.getInputStream(), name);
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            try {
+                if (!process.waitFor(1, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
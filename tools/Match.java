@@ -0,0 +1,289 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * One game of the offline referee. The rules are the ones of GameState, this class adds the map generation,
+ * the protocol of the CodinGame referee and its time limits. A bot that times out, crashes or answers garbage
+ * is out: it dies on that turn.
+ */
+class Match {
+    static final int WIDTH = 13;
+    static final int HEIGHT = 11;
+    static final int MAX_TURNS = 200;
+    static final int INITIAL_BOMBS = 1;
+    static final int INITIAL_RANGE = 3;
+    static final int SURVIVED = Integer.MAX_VALUE;
+
+    private static final byte FLOOR = (byte) Cell.Type.Floor.ordinal();
+    private static final byte BOX = (byte) Cell.Type.Box.ordinal();
+    private static final byte BOX_WITH_EXTRA_RANGE = (byte) Cell.Type.BoxWithExtraRange.ordinal();
+    private static final byte BOX_WITH_EXTRA_BOMB = (byte) Cell.Type.BoxWithExtraBomb.ordinal();
+    private static final byte EXTRA_RANGE = (byte) Cell.Type.ExtraRange.ordinal();
+    private static final byte EXTRA_BOMB = (byte) Cell.Type.ExtraBomb.ordinal();
+    private static final byte WALL = (byte) Cell.Type.Wall.ordinal();
+
+    private final int playerCount;
+    private final long firstTurnNanos;
+    private final long turnNanos;
+    private final GridTopology topology = new GridTopology(WIDTH, HEIGHT);
+    final GameState state = new GameState(topology);
+    private final int[] actions = new int[GameState.MAX_PLAYERS];
+    private final int[] distances = new int[WIDTH * HEIGHT];
+    private final int[] queue = new int[WIDTH * HEIGHT];
+
+    final int[] deathTurns = new int[GameState.MAX_PLAYERS];
+    final boolean[] timedOut = new boolean[GameState.MAX_PLAYERS];
+    final boolean[] invalidOutput = new boolean[GameState.MAX_PLAYERS];
+    final boolean[] crashed = new boolean[GameState.MAX_PLAYERS];
+    final long[][] latencies = new long[GameState.MAX_PLAYERS][MAX_TURNS];
+    final int[] answers = new int[GameState.MAX_PLAYERS];
+    int turns;
+
+    Match(long seed, int playerCount, long firstTurnNanos, long turnNanos) {
+        this.playerCount = playerCount;
+        this.firstTurnNanos = firstTurnNanos;
+        this.turnNanos = turnNanos;
+        generate(new Random(seed));
+    }
+
+    /**
+     * Walls on odd cells, boxes mirrored into all four quarters, free corners for the players.
+     */
+    private void generate(Random random) {
+        final double boxDensity = 0.3 + 0.3 * random.nextDouble();
+        for (int y = 0; y <= HEIGHT / 2; ++y) {
+            for (int x = 0; x <= WIDTH / 2; ++x) {
+                byte type = FLOOR;
+                if (x % 2 == 1 && y % 2 == 1) {
+                    type = WALL;
+                } else if (x + y > 2 && random.nextDouble() < boxDensity) {
+                    final int kind = random.nextInt(5);
+                    type = kind < 3 ? BOX : kind == 3 ? BOX_WITH_EXTRA_RANGE : BOX_WITH_EXTRA_BOMB;
+                }
+                state.cells[y * WIDTH + x] = type;
+                state.cells[y * WIDTH + WIDTH - 1 - x] = type;
+                state.cells[(HEIGHT - 1 - y) * WIDTH + x] = type;
+                state.cells[(HEIGHT - 1 - y) * WIDTH + WIDTH - 1 - x] = type;
+            }
+        }
+        final int[] corners = {0, WIDTH * HEIGHT - 1, WIDTH - 1, (HEIGHT - 1) * WIDTH};
+        Arrays.fill(state.playerCells, GameState.NO_CELL);
+        for (int player = 0; player < playerCount; ++player) {
+            state.playerCells[player] = corners[player];
+            state.bombsAvailable[player] = INITIAL_BOMBS;
+            state.explosionRanges[player] = INITIAL_RANGE;
+        }
+        state.hash = state.calculateHash();
+        Arrays.fill(deathTurns, SURVIVED);
+    }
+
+    void play(BotConnection[] bots) throws IOException, InterruptedException {
+        final long[] sentAt = new long[playerCount];
+        for (turns = 0; turns < MAX_TURNS && aliveCount() > (playerCount > 1 ? 1 : 0); ++turns) {
+            final String frame = render();
+            for (int player = 0; player < playerCount; ++player) {
+                if (state.isAlive(player)) {
+                    sentAt[player] = System.nanoTime();
+                    bots[player].send(turns == 0 ? initLine(player) + frame : frame);
+                }
+            }
+            final long limit = turns == 0 ? firstTurnNanos : turnNanos;
+            for (int player = 0; player < playerCount; ++player) {
+                if (!state.isAlive(player)) {
+                    continue;
+                }
+                final long remaining = sentAt[player] + limit - System.nanoTime();
+                final String answer = bots[player].readLine(Math.max(0, remaining));
+                final long latency = System.nanoTime() - sentAt[player];
+                if (answer == null && bots[player].crash() != null) {
+                    crashed[player] = true;
+                    eliminate(player);
+                    continue;
+                }
+                if (answer == null || latency > limit) {
+                    timedOut[player] = true;
+                    eliminate(player);
+                    continue;
+                }
+                latencies[player][answers[player]++] = latency;
+                final int action = parse(player, answer);
+                if (action < 0) {
+                    invalidOutput[player] = true;
+                    eliminate(player);
+                    continue;
+                }
+                actions[player] = action;
+            }
+            state.step(actions);
+            for (int player = 0; player < playerCount; ++player) {
+                if (deathTurns[player] == SURVIVED && !state.isAlive(player)) {
+                    deathTurns[player] = turns;
+                }
+            }
+        }
+    }
+
+    int destroyedBoxes(int player) {
+        return state.destroyedBoxes[player];
+    }
+
+    /**
+     * @return 0 for the winners, later death and then more destroyed boxes rank higher
+     */
+    int rank(int player) {
+        int rank = 0;
+        for (int other = 0; other < playerCount; ++other) {
+            if (deathTurns[other] > deathTurns[player]
+                    || (deathTurns[other] == deathTurns[player] && state.destroyedBoxes[other] > state.destroyedBoxes[player])) {
+                ++rank;
+            }
+        }
+        return rank;
+    }
+
+    boolean isSoleWinner(int player) {
+        if (rank(player) != 0) {
+            return false;
+        }
+        for (int other = 0; other < playerCount; ++other) {
+            if (other != player && rank(other) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int aliveCount() {
+        int count = 0;
+        for (int player = 0; player < playerCount; ++player) {
+            if (state.isAlive(player)) {
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    private void eliminate(int player) {
+        state.kill(player);
+        deathTurns[player] = turns;
+        actions[player] = GameState.STAY;
+    }
+
+    String initLine(int player) {
+        return WIDTH + " " + HEIGHT + " " + player + "\n";
+    }
+
+    /**
+     * @return the turn input of the current state, the same for all players
+     */
+    String render() {
+        final StringBuilder sb = new StringBuilder(WIDTH * HEIGHT * 2 + 256);
+        int entityCount = 0;
+        final StringBuilder entities = new StringBuilder(256);
+        for (int y = 0; y < HEIGHT; ++y) {
+            for (int x = 0; x < WIDTH; ++x) {
+                final int cell = y * WIDTH + x;
+                final byte type = state.cells[cell];
+                if (type == EXTRA_RANGE || type == EXTRA_BOMB) {
+                    sb.append('.');
+                    entities.append(Item.ENTITY_CODE).append(" 0 ").append(x).append(' ').append(y).append(' ')
+                            .append(type == EXTRA_RANGE ? Item.Type.ExtraRange.code : Item.Type.ExtraBomb.code).append(" 0\n");
+                    ++entityCount;
+                } else {
+                    sb.append(Cell.Type.VALUES[type].symbol);
+                }
+            }
+            sb.append('\n');
+        }
+        for (int player = 0; player < playerCount; ++player) {
+            final int cell = state.playerCells[player];
+            if (cell != GameState.NO_CELL) {
+                entities.append(Boomer.ENTITY_TYPE).append(' ').append(player).append(' ')
+                        .append(cell % WIDTH).append(' ').append(cell / WIDTH).append(' ')
+                        .append(state.bombsAvailable[player]).append(' ').append(state.explosionRanges[player]).append('\n');
+                ++entityCount;
+            }
+        }
+        for (int i = 0; i < state.bombCount; ++i) {
+            final int cell = state.bombCells[i];
+            entities.append(Bomb.ENTITY_TYPE).append(' ').append(state.bombOwners[i]).append(' ')
+                    .append(cell % WIDTH).append(' ').append(cell / WIDTH).append(' ')
+                    .append(state.bombTimers[i]).append(' ').append(state.bombRanges[i]).append('\n');
+            ++entityCount;
+        }
+        return sb.append(entityCount).append('\n').append(entities).toString();
+    }
+
+    /**
+     * @return GameState action for "MOVE x y [message]" or "BOMB x y [message]", -1 if the line is neither
+     */
+    private int parse(int player, String answer) {
+        final String[] parts = answer.trim().split(" ", 4);
+        if (parts.length < 3) {
+            return -1;
+        }
+        final int bomb;
+        if (parts[0].equals("MOVE")) {
+            bomb = 0;
+        } else if (parts[0].equals("BOMB")) {
+            bomb = GameState.BOMB;
+        } else {
+            return -1;
+        }
+        final int x;
+        final int y;
+        try {
+            x = Integer.parseInt(parts[1]);
+            y = Integer.parseInt(parts[2]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        if (x < 0 || y < 0 || x >= WIDTH || y >= HEIGHT) {
+            return -1;
+        }
+        return bomb | directionTowards(state.playerCells[player], y * WIDTH + x);
+    }
+
+    /**
+     * First step of a shortest path to target, STAY if there is none or the player is already there.
+     */
+    private int directionTowards(int from, int target) {
+        if (from == target || !state.isPassable(target)) {
+            return GameState.STAY;
+        }
+        Arrays.fill(distances, Integer.MAX_VALUE);
+        int head = 0;
+        int tail = 0;
+        distances[target] = 0;
+        queue[tail++] = target;
+        while (head < tail) {
+            final int cell = queue[head++];
+            for (int i = 0; i < topology.neighbourCount(cell); ++i) {
+                final int next = topology.neighbour(cell, i);
+                if (distances[next] == Integer.MAX_VALUE && state.isPassable(next)) {
+                    distances[next] = distances[cell] + 1;
+                    queue[tail++] = next;
+                }
+            }
+        }
+        int best = GameState.NO_CELL;
+        for (int i = 0; i < topology.neighbourCount(from); ++i) {
+            final int next = topology.neighbour(from, i);
+            if (distances[next] != Integer.MAX_VALUE && (best == GameState.NO_CELL || distances[next] < distances[best])) {
+                best = next;
+            }
+        }
+        if (best == GameState.NO_CELL) {
+            return GameState.STAY;
+        }
+        if (best == from - 1) {
+            return GameState.LEFT;
+        } else if (best == from + 1) {
+            return GameState.RIGHT;
+        } else if (best == from - WIDTH) {
+            return GameState.UP;
+        }
+        return GameState.DOWN;
+    }
+}
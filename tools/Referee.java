@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Offline referee: plays seeded self-play matches and reports results and answer latencies per bot.
+ * <p>
+ * Bots run in-process by default, all seats on the Player compiled with this referee. With --pipes each seat is
+ * a separate JVM started from the class path of a --bot option, seats rotate over the bots from match to match.
+ * <pre>
+ * java -cp out Referee --matches 100 --players 2 --parallel 4
+ * java -cp out Referee --pipes --bot old/classes --bot out --matches 50 -- -Dhypersonic.threads=2
+ * </pre>
+ * Options after "--" are JVM options of the piped bots.
+ * <p>
+ * The tools are compiled with the bot. Its classes stay in src/Player.java, the contest takes a single file,
+ * so using them from here is what -Xlint calls auxiliary class access and that warning is turned off:
+ * <pre>
+ * javac -Xlint:all,-auxiliaryclass -d out src/Player.java tools/*.java
+ * </pre>
+ */
+class Referee {
+    private final int matches;
+    private final long seed;
+    private final int parallelism;
+    private final int players;
+    private final boolean pipes;
+    private final long firstTurnNanos;
+    private final long turnNanos;
+    private final List<String> bots;
+    private final List<String> jvmOptions;
+    private final Stats[] stats;
+
+    /**
+     * Results of one bot, or of one seat when every seat plays the same bot.
+     */
+    static class Stats {
+        final String name;
+        int games;
+        int wins;
+        int draws;
+        int losses;
+        int deaths;
+        int timeouts;
+        int invalidOutputs;
+        int crashes;
+        long destroyedBoxes;
+        final Histogram latency = new Histogram();
+        final Histogram firstTurnLatency = new Histogram();
+
+        Stats(String name) {
+            this.name = name;
+        }
+    }
+
+    Referee(String[] args) {
+        int matches = 20;
+        long seed = 1;
+        int parallelism = 1;
+        int players = 2;
+        boolean pipes = false;
+        long firstTurnMillis = 1000;
+        long turnMillis = 100;
+        final List<String> bots = new ArrayList<>();
+        final List<String> jvmOptions = new ArrayList<>();
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--matches":
+                    matches = Integer.parseInt(args[++i]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+                case "--parallel":
+                    // in-process bots share the static Log, their lines would interleave: checked below
+                    parallelism = Integer.parseInt(args[++i]);
+                    break;
+                case "--players":
+                    players = Integer.parseInt(args[++i]);
+                    break;
+                case "--pipes":
+                    pipes = true;
+                    break;
+                case "--bot":
+                    bots.add(args[++i]);
+                    break;
+                case "--first-turn-ms":
+                    firstTurnMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--turn-ms":
+                    turnMillis = Long.parseLong(args[++i]);
+                    break;
+                case "--":
+                    while (++i < args.length) {
+                        jvmOptions.add(args[i]);
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (players < 1 || players > GameState.MAX_PLAYERS) {
+            throw new IllegalArgumentException("--players must be between 1 and " + GameState.MAX_PLAYERS);
+        }
+        if (!pipes && !bots.isEmpty()) {
+            throw new IllegalArgumentException("--bot needs --pipes, in-process seats all play the compiled Player");
+        }
+        if (!pipes && parallelism > 1 && Log.INFO) {
+            throw new IllegalArgumentException("--parallel with in-process bots needs -Dhypersonic.log=off or warn,"
+                    + " they all write to the one static Log");
+        }
+        if (bots.isEmpty()) {
+            bots.add(System.getProperty("java.class.path"));
+        }
+        this.matches = matches;
+        this.seed = seed;
+        this.parallelism = parallelism;
+        this.players = players;
+        this.pipes = pipes;
+        this.firstTurnNanos = TimeUnit.MILLISECONDS.toNanos(firstTurnMillis);
+        this.turnNanos = TimeUnit.MILLISECONDS.toNanos(turnMillis);
+        this.bots = bots;
+        this.jvmOptions = jvmOptions;
+        if (bots.size() == 1) {
+            stats = new Stats[players];
+            for (int seat = 0; seat < players; ++seat) {
+                stats[seat] = new Stats("seat " + seat);
+            }
+        } else {
+            stats = new Stats[bots.size()];
+            for (int bot = 0; bot < bots.size(); ++bot) {
+                stats[bot] = new Stats("bot " + bot + " " + bots.get(bot));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Referee referee = new Referee(args);
+        referee.playAll();
+        System.out.print(referee.report());
+    }
+
+    void playAll() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            final List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < matches; ++i) {
+                final int index = i;
+                results.add(executor.submit(() -> {
+                    playMatch(index);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void playMatch(int index) throws IOException, InterruptedException {
+        final Match match = new Match(seed * 1_000_003L + index, players, firstTurnNanos, turnNanos);
+        final BotConnection[] connections = new BotConnection[players];
+        final int[] botOfSeat = new int[players];
+        try {
+            for (int seat = 0; seat < players; ++seat) {
+                botOfSeat[seat] = (seat + index) % bots.size();
+                final String name = "match-" + index + "-seat-" + seat;
+                connections[seat] = pipes
+                        ? new BotConnection.External(bots.get(botOfSeat[seat]), jvmOptions, name)
+                        : new BotConnection.InProcess(name);
+            }
+            match.play(connections);
+        } finally {
+            for (BotConnection connection : connections) {
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+        synchronized (stats) {
+            for (int seat = 0; seat < players; ++seat) {
+                final Stats s = stats[bots.size() == 1 ? seat : botOfSeat[seat]];
+                ++s.games;
+                if (match.isSoleWinner(seat)) {
+                    ++s.wins;
+                } else if (match.rank(seat) == 0) {
+                    ++s.draws;
+                } else {
+                    ++s.losses;
+                }
+                if (match.deathTurns[seat] != Match.SURVIVED) {
+                    ++s.deaths;
+                }
+                if (match.timedOut[seat]) {
+                    ++s.timeouts;
+                }
+                if (match.invalidOutput[seat]) {
+                    ++s.invalidOutputs;
+                }
+                if (match.crashed[seat]) {
+                    ++s.crashes;
+                }
+                s.destroyedBoxes += match.destroyedBoxes(seat);
+                for (int turn = 0; turn < match.answers[seat]; ++turn) {
+                    (turn == 0 ? s.firstTurnLatency : s.latency).record(match.latencies[seat][turn]);
+                }
+            }
+        }
+    }
+
+    String report() {
+        int nameWidth = 1;
+        for (Stats s : stats) {
+            nameWidth = Math.max(nameWidth, s.name.length());
+        }
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "%d matches, %d players, seed %d, %s%n",
+                matches, players, seed, pipes ? "pipes" : "in-process"));
+        sb.append(String.format(Locale.ROOT, "%-" + nameWidth + "s %6s %6s %6s %6s %6s %8s %7s %7s %7s %9s %9s %9s %9s%n",
+                "", "games", "win%", "draw%", "loss%", "deaths", "timeouts", "invalid", "crashed", "boxes",
+                "first ms", "p50 ms", "p99 ms", "max ms"));
+        for (Stats s : stats) {
+            final double games = Math.max(1, s.games);
+            sb.append(String.format(Locale.ROOT, "%-" + nameWidth + "s %6d %6.1f %6.1f %6.1f %6d %8d %7d %7d %7.1f %9.2f %9.2f %9.2f %9.2f%n",
+                    s.name, s.games, 100 * s.wins / games, 100 * s.draws / games, 100 * s.losses / games,
+                    s.deaths, s.timeouts, s.invalidOutputs, s.crashes, s.destroyedBoxes / games,
+                    s.firstTurnLatency.max / 1e6, s.latency.percentile(0.5) / 1e6,
+                    s.latency.percentile(0.99) / 1e6, s.latency.max / 1e6));
+        }
+        return sb.toString();
+    }
+}
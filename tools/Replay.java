@@ -0,0 +1,159 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Replays a match recorded with -Dhypersonic.record=file, without the referee.
+ * <p>
+ * By default the whole match is replayed at full speed: answers that differ from the recorded ones are listed,
+ * then the slowest turns and the profile of the replay. With --turn the single frame is replayed on a fresh
+ * Player, --repeat times, to profile it in isolation; as the turn state starts empty its answer may differ.
+ * <pre>
+ * java -cp out Replay match.log [--slowest 10]
+ * java -cp out Replay match.log --turn 57 --repeat 1000
+ * </pre>
+ */
+class Replay {
+    final byte[] init;
+    final List<byte[]> frames = new ArrayList<>(); // also read by Bench
+    private final List<String> answers = new ArrayList<>();
+    private final List<Long> turnNanos = new ArrayList<>();
+
+    Replay(String file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != TurnLog.MAGIC) {
+                throw new IOException(file + " is not a turn log");
+            }
+            final int version = in.readInt();
+            if (version != TurnLog.VERSION) {
+                throw new IOException(file + " has version " + version + ", expected " + TurnLog.VERSION);
+            }
+            init = readBytes(in);
+            while (true) {
+                final byte[] frame;
+                try {
+                    frame = readBytes(in);
+                } catch (EOFException e) {
+                    break; // a log cut by a killed bot ends anywhere
+                }
+                try {
+                    final String answer = new String(readBytes(in), StandardCharsets.US_ASCII).trim();
+                    final long nanos = in.readLong();
+                    frames.add(frame);
+                    answers.add(answer);
+                    turnNanos.add(nanos);
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            throw new IllegalArgumentException("Usage: Replay <log> [--slowest n] [--turn n [--repeat n]]");
+        }
+        int turn = -1;
+        int repeat = 1;
+        int slowest = 10;
+        for (int i = 1; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--turn":
+                    turn = Integer.parseInt(args[++i]);
+                    break;
+                case "--repeat":
+                    repeat = Integer.parseInt(args[++i]);
+                    break;
+                case "--slowest":
+                    slowest = Integer.parseInt(args[++i]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        final Replay replay = new Replay(args[0]);
+        if (turn < 0) {
+            replay.replayMatch(slowest);
+        } else {
+            replay.replayTurn(turn, repeat);
+        }
+    }
+
+    void replayMatch(int slowest) {
+        final ByteArrayOutputStream input = new ByteArrayOutputStream();
+        input.write(init, 0, init.length);
+        for (byte[] frame : frames) {
+            input.write(frame, 0, frame.length);
+        }
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(64);
+        final Player player = new Player(new ByteArrayInputStream(input.toByteArray()), new PrintStream(output, true));
+        player.initWorld();
+        final long[] replayNanos = new long[frames.size()];
+        int mismatches = 0;
+        for (int turn = 0; turn < frames.size(); ++turn) {
+            final long start = System.nanoTime();
+            player.playTurn();
+            replayNanos[turn] = System.nanoTime() - start;
+            final String answer = new String(output.toByteArray(), StandardCharsets.US_ASCII).trim();
+            output.reset();
+            if (!answer.equals(answers.get(turn))) {
+                ++mismatches;
+                System.out.println(String.format(Locale.ROOT, "turn %3d: recorded \"%s\", replayed \"%s\"",
+                        turn, answers.get(turn), answer));
+            }
+        }
+        System.out.println(String.format(Locale.ROOT, "%d turns, %d answers differ", frames.size(), mismatches));
+
+        final Integer[] order = new Integer[frames.size()];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(turnNanos.get(b), turnNanos.get(a)));
+        System.out.println(String.format(Locale.ROOT, "%-6s %12s %12s", "turn", "recorded ms", "replayed ms"));
+        for (int i = 0; i < Math.min(slowest, order.length); ++i) {
+            System.out.println(String.format(Locale.ROOT, "%-6d %12.3f %12.3f",
+                    order[i], turnNanos.get(order[i]) / 1e6, replayNanos[order[i]] / 1e6));
+        }
+        System.out.print(player.profiler.summary());
+    }
+
+    void replayTurn(int turn, int repeat) {
+        if (turn >= frames.size()) {
+            throw new IllegalArgumentException("The log has " + frames.size() + " turns");
+        }
+        final byte[] frame = frames.get(turn);
+        final byte[] input = Arrays.copyOf(init, init.length + frame.length);
+        System.arraycopy(frame, 0, input, init.length, frame.length);
+        final Histogram histogram = new Histogram();
+        String answer = null;
+        for (int i = 0; i < repeat; ++i) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream(64);
+            final Player player = new Player(new ByteArrayInputStream(input), new PrintStream(output, true));
+            player.initWorld();
+            final long start = System.nanoTime();
+            player.playTurn();
+            histogram.record(System.nanoTime() - start);
+            answer = new String(output.toByteArray(), StandardCharsets.US_ASCII).trim();
+        }
+        System.out.println(String.format(Locale.ROOT, "turn %d: recorded \"%s\" in %.3f ms, replayed \"%s\"",
+                turn, answers.get(turn), turnNanos.get(turn) / 1e6, answer));
+        System.out.println(String.format(Locale.ROOT, "%d runs: p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+                histogram.count, histogram.percentile(0.5) / 1e6, histogram.percentile(0.99) / 1e6, histogram.max / 1e6));
+    }
+}